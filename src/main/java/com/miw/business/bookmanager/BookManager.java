@@ -1,6 +1,9 @@
 
 package com.miw.business.bookmanager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -8,6 +11,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.logging.log4j.*;
 
 import com.miw.model.Book;
+import com.miw.model.BookPage;
+import com.miw.model.BookSort;
+import com.miw.model.Cart;
+import com.miw.model.CartItem;
+import com.miw.persistence.RowHandler;
 import com.miw.persistence.book.BookDataService;
 import com.miw.persistence.vat.VATDataService;
 
@@ -20,20 +28,33 @@ public class BookManager implements BookManagerService {
 	@Autowired
 	private VATDataService ivaDataService;
 	
-	private Map<Integer, Integer> discounts;
+	@Autowired
+	private SpecialOfferSelector specialOfferSelector;
+	
+	private final PriceTable priceTable = new PriceTable();
+	
+	private int catalogPageSize = 20;
+	private int maxCatalogPageSize = 100;
 
 	// Setter solo para discounts (se configura desde XML)
 	public void setDiscounts(Map<Integer, Integer> discounts) {
-		this.discounts = discounts;
+		priceTable.setDiscounts(discounts);
+	}
+
+	// Tamaño de pagina del catalogo (se configura desde XML)
+	public void setCatalogPageSize(int catalogPageSize) {
+		this.catalogPageSize = catalogPageSize;
+	}
+
+	public void setMaxCatalogPageSize(int maxCatalogPageSize) {
+		this.maxCatalogPageSize = maxCatalogPageSize;
 	}
 
 	/**
-	 * Calcula el precio final con IVA y descuentos
+	 * Calcula el precio final con IVA y descuentos (ver PriceTable)
 	 */
 	private double calculateFinalPrice(Book book) {
-		return book.getBasePrice() 
-			* (1 + book.getVat().getValue()) 
-			* discounts.get(book.getVat().getTaxGroup());
+		return priceTable.priceOf(book);
 	}
 
 	public List<Book> getBooks() throws Exception {
@@ -47,20 +68,60 @@ public class BookManager implements BookManagerService {
 		return books;
 	}
 	
+	public BookPage getBooksPage(BookSort sort, Integer afterId, String afterTitle, int pageSize) throws Exception {
+		int size = pageSize <= 0 ? catalogPageSize : Math.min(pageSize, maxCatalogPageSize);
+		logger.debug("Asking for a page of " + size + " books, sort " + sort + ", after " + afterId);
+		
+		// Pedimos una fila de mas para saber si hay pagina siguiente
+		List<Book> books = bookDataService.getBooksPage(sort, afterId, afterTitle, size + 1);
+		boolean hasNext = books.size() > size;
+		if (hasNext) {
+			books = books.subList(0, size);
+		}
+		
+		for (Book b : books) {
+			b.setPrice(calculateFinalPrice(b));
+		}
+		return new BookPage(books, sort, hasNext);
+	}
+	
+	public long exportBooks(RowHandler<Book> handler) throws Exception {
+		logger.debug("Exporting the catalog");
+		// El precio se calcula fila a fila, mientras se recorre el cursor
+		return bookDataService.streamBooks(b -> {
+			b.setPrice(calculateFinalPrice(b));
+			handler.handle(b);
+		});
+	}
+	
 	public Book getSpecialOffer() throws Exception
 	{
-		List<Book> books = bookDataService.getBooks();
-		int number = (int) (Math.random()*books.size());
-		Book specialBook = books.get(number);
+		// Solo se lee de la BD el libro elegido
+		Book specialBook = findBook(specialOfferSelector.nextId());
+		if (specialBook == null) {
+			// El libro elegido ya no existe: se recargan los candidatos
+			specialOfferSelector.refresh();
+			specialBook = findBook(specialOfferSelector.nextId());
+		}
+		if (specialBook == null) {
+			throw new Exception("No books available for the special offer");
+		}
 		logger.debug("Applying disccount to " + specialBook.getTitle());
 		specialBook.setPrice(calculateFinalPrice(specialBook) * 0.85);
 		return specialBook;
 	}
 	
+	private Book findBook(int id) throws Exception {
+		return id < 0 ? null : bookDataService.getBookById(id);
+	}
+	
 	public Book newBook(Book book, int family) throws Exception {
 		// TODO Auto-generated method stub
 		book.setVat(this.ivaDataService.getVAT(family));
-		return this.bookDataService.newBook(book);
+		Book created = this.bookDataService.newBook(book);
+		priceTable.update(created);
+		specialOfferSelector.bookAdded(created.getId());
+		return created;
 	}
 	
 	@Override
@@ -76,18 +137,60 @@ public class BookManager implements BookManagerService {
 		return book;
 	}
 	
+	@Override
+	public List<Book> getBooksByIds(Collection<Integer> ids) throws Exception {
+		logger.debug("Getting " + ids.size() + " books by id");
+		List<Book> books = bookDataService.getBooksByIds(ids);
+		priceBooks(books);
+		return books;
+	}
+	
+	@Override
+	public void priceBooks(Collection<Book> books) throws Exception {
+		for (Book b : books) {
+			b.setPrice(calculateFinalPrice(b));
+		}
+	}
+	
 	@Override
 	public boolean checkStockAvailability(int bookId, int requestedQuantity) throws Exception {
 		logger.debug("Checking stock for book " + bookId + ": " + requestedQuantity + " units");
 		return bookDataService.checkStockAvailability(bookId, requestedQuantity);
 	}
 	
+	@Override
+	public Map<Integer, Boolean> getCartAvailability(Cart cart) throws Exception {
+		List<CartItem> lines = new ArrayList<>();
+		List<Integer> ids = new ArrayList<>();
+		for (CartItem item : cart.getItems()) {
+			if (!item.isReserved()) {
+				lines.add(item);
+				ids.add(item.getBookId());
+			}
+		}
+		
+		Map<Integer, Integer> stocks = bookDataService.getStocks(ids);
+		Map<Integer, Boolean> availability = new HashMap<>();
+		for (CartItem item : lines) {
+			Integer stock = stocks.get(item.getBookId());
+			availability.put(item.getBookId(), stock != null && stock >= item.getQuantity());
+		}
+		logger.debug("Cart availability: " + availability);
+		return availability;
+	}
+	
 	@Override
 	public boolean reduceStock(int bookId, int quantity) throws Exception {
 		logger.debug("Reducing stock for book " + bookId + ": " + quantity + " units");
 		return bookDataService.reduceStock(bookId, quantity);
 	}
 	
+	@Override
+	public boolean reduceStocks(Map<Integer, Integer> quantities) throws Exception {
+		logger.debug("Reducing stock for " + quantities.size() + " books: " + quantities);
+		return bookDataService.reduceStocks(quantities);
+	}
+	
 	@Override
 	public boolean increaseStock(int bookId, int quantity) throws Exception {
 		logger.debug("Increasing stock for book " + bookId + ": " + quantity + " units");
@@ -1,12 +1,18 @@
 
 package com.miw.business.bookmanager;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.logging.log4j.*;
 
 import com.miw.model.Book;
+import com.miw.model.BookPage;
+import com.miw.model.BookSort;
+import com.miw.model.Cart;
+import com.miw.persistence.RowHandler;
 
 
 public class BookManagerEJBService implements BookManagerService {
@@ -27,6 +33,16 @@ public class BookManagerEJBService implements BookManagerService {
 		return bookManager.getBooks();
 	}
 	
+	public BookPage getBooksPage(BookSort sort, Integer afterId, String afterTitle, int pageSize) throws Exception {
+		printMessage("*** BookManagerEJBService.getBooksPage();");
+		return bookManager.getBooksPage(sort, afterId, afterTitle, pageSize);
+	}
+	
+	public long exportBooks(RowHandler<Book> handler) throws Exception {
+		printMessage("*** BookManagerEJBService.exportBooks();");
+		return bookManager.exportBooks(handler);
+	}
+	
 	public Book getSpecialOffer() throws Exception
 	{
 		printMessage("*** BookManagerEJBService.getSpecialOffer();");
@@ -52,18 +68,42 @@ public class BookManagerEJBService implements BookManagerService {
 		return bookManager.getBookById(id);
 	}
 	
+	@Override
+	public List<Book> getBooksByIds(Collection<Integer> ids) throws Exception {
+		printMessage("*** BookManagerEJBService.getBooksByIds();");
+		return bookManager.getBooksByIds(ids);
+	}
+	
+	@Override
+	public void priceBooks(Collection<Book> books) throws Exception {
+		printMessage("*** BookManagerEJBService.priceBooks();");
+		bookManager.priceBooks(books);
+	}
+	
 	@Override
 	public boolean checkStockAvailability(int bookId, int requestedQuantity) throws Exception {
 		printMessage("*** BookManagerEJBService.checkStockAvailability();");
 		return bookManager.checkStockAvailability(bookId, requestedQuantity);
 	}
 	
+	@Override
+	public Map<Integer, Boolean> getCartAvailability(Cart cart) throws Exception {
+		printMessage("*** BookManagerEJBService.getCartAvailability();");
+		return bookManager.getCartAvailability(cart);
+	}
+	
 	@Override
 	public boolean reduceStock(int bookId, int quantity) throws Exception {
 		printMessage("*** BookManagerEJBService.reduceStock();");
 		return bookManager.reduceStock(bookId, quantity);
 	}
 
+	@Override
+	public boolean reduceStocks(Map<Integer, Integer> quantities) throws Exception {
+		printMessage("*** BookManagerEJBService.reduceStocks();");
+		return bookManager.reduceStocks(quantities);
+	}
+
 	@Override
 	public boolean increaseStock(int bookId, int quantity) throws Exception {
 		
@@ -1,18 +1,39 @@
 package com.miw.business.bookmanager;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.miw.model.Book;
+import com.miw.model.BookPage;
+import com.miw.model.BookSort;
+import com.miw.model.Cart;
+import com.miw.persistence.RowHandler;
 
 public interface BookManagerService {
 	public List<Book> getBooks() throws Exception;
+	// Catalogo paginado por keyset; pageSize <= 0 usa el tamaño configurado
+	public BookPage getBooksPage(BookSort sort, Integer afterId, String afterTitle, int pageSize) throws Exception;
+	// Recorre todo el catalogo con el precio final calculado, sin cargarlo en memoria
+	public long exportBooks(RowHandler<Book> handler) throws Exception;
 	public Book getSpecialOffer() throws Exception;
 	public Book newBook(Book book, int family) throws Exception;
 	
 	// Métodos para el carrito de compra
+	// Libro con precio y con el stock leido en la misma consulta (o del ledger): basta
+	// para comprobar la disponibilidad sin otra lectura
 	public Book getBookById(int id) throws Exception;
+	// Varios libros, ya con precio, en un numero constante de consultas
+	public List<Book> getBooksByIds(Collection<Integer> ids) throws Exception;
+	// Calcula el precio final de libros ya cargados, sin ir a la BD
+	public void priceBooks(Collection<Book> books) throws Exception;
 	public boolean checkStockAvailability(int bookId, int requestedQuantity) throws Exception;
+	// Disponibilidad de todo el carrito con una sola lectura de stock: bookId de cada linea
+	// de compra normal -> hay stock para la cantidad pedida (las reservas ya lo tienen apartado)
+	public Map<Integer, Boolean> getCartAvailability(Cart cart) throws Exception;
 	public boolean reduceStock(int bookId, int quantity) throws Exception;
+	// Descuenta el stock de varios libros (bookId -> cantidad) en una transaccion
+	public boolean reduceStocks(Map<Integer, Integer> quantities) throws Exception;
 	
 	// NUEVO: Para restaurar stock cuando se cancela una reserva
 	public boolean increaseStock(int bookId, int quantity) throws Exception;
@@ -0,0 +1,144 @@
+package com.miw.business.bookmanager;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.miw.model.Book;
+import com.miw.model.VAT;
+
+/**
+ * Precios finales precalculados: un multiplicador por grupo de IVA
+ * ((1 + IVA) * descuento) y una tabla de precios indexada por id de libro.
+ *
+ * Cada entrada guarda el precio base y el IVA con los que se calculo; si el
+ * libro leido de la BD no coincide, la entrada se recalcula. Los cambios de
+ * descuentos o de IVA recalculan solo las entradas del grupo afectado.
+ */
+class PriceTable {
+
+	// Por encima de este id no se guarda el precio, se calcula directamente
+	private static final int MAX_INDEXED_ID = 1 << 20;
+
+	private static final class Entry {
+		final double basePrice;
+		final int taxGroup;
+		final double vat;
+		final double price;
+
+		Entry(double basePrice, int taxGroup, double vat, double price) {
+			this.basePrice = basePrice;
+			this.taxGroup = taxGroup;
+			this.vat = vat;
+			this.price = price;
+		}
+
+		boolean matches(double basePrice, int taxGroup, double vat) {
+			return this.basePrice == basePrice && this.taxGroup == taxGroup && this.vat == vat;
+		}
+	}
+
+	// Indexados por grupo de IVA; se sustituyen enteros, nunca se modifican
+	private volatile double[] discounts = new double[0];
+	private volatile double[] vats = new double[0];
+	private volatile double[] multipliers = new double[0];
+
+	// Indexado por id de libro
+	private volatile Entry[] entries = new Entry[64];
+
+	/**
+	 * Precio final del libro: basePrice * (1 + IVA) * descuento del grupo.
+	 */
+	double priceOf(Book book) {
+		VAT vat = book.getVat();
+		int id = book.getId();
+		int taxGroup = vat.getTaxGroup();
+		double vatValue = vat.getValue();
+
+		Entry[] table = entries;
+		if (id >= 0 && id < table.length) {
+			Entry e = table[id];
+			if (e != null && e.matches(book.getBasePrice(), taxGroup, vatValue)) {
+				return e.price;
+			}
+		}
+		return update(book);
+	}
+
+	/**
+	 * Recalcula la entrada de un libro nuevo o cuyo precio base ha cambiado. Si
+	 * el libro trae un IVA distinto del conocido, se recalcula todo su grupo.
+	 */
+	synchronized double update(Book book) {
+		VAT vat = book.getVat();
+		int taxGroup = vat.getTaxGroup();
+		double vatValue = vat.getValue();
+		if (taxGroup >= vats.length || vats[taxGroup] != vatValue) {
+			setVat(taxGroup, vatValue);
+		}
+
+		if (taxGroup >= discounts.length || Double.isNaN(discounts[taxGroup])) {
+			throw new IllegalStateException("No discount configured for tax group " + taxGroup);
+		}
+
+		double price = book.getBasePrice() * multipliers[taxGroup];
+		int id = book.getId();
+		if (id >= 0 && id < MAX_INDEXED_ID) {
+			Entry[] table = entries;
+			if (id >= table.length) {
+				table = Arrays.copyOf(table, Math.max(id + 1, table.length * 2));
+			}
+			table[id] = new Entry(book.getBasePrice(), taxGroup, vatValue, price);
+			entries = table;
+		}
+		return price;
+	}
+
+	/**
+	 * Nuevos descuentos por grupo de IVA: se recalculan los grupos que cambian.
+	 */
+	synchronized void setDiscounts(Map<Integer, Integer> discountsByGroup) {
+		int size = discounts.length;
+		for (Integer group : discountsByGroup.keySet()) {
+			size = Math.max(size, group + 1);
+		}
+		double[] updated = new double[size];
+		Arrays.fill(updated, Double.NaN);
+		for (Map.Entry<Integer, Integer> d : discountsByGroup.entrySet()) {
+			updated[d.getKey()] = d.getValue();
+		}
+		double[] previous = discounts;
+		discounts = updated;
+
+		for (int group = 0; group < size; group++) {
+			double old = group < previous.length ? previous[group] : Double.NaN;
+			if (Double.compare(old, updated[group]) != 0) {
+				recompute(group);
+			}
+		}
+	}
+
+	private void setVat(int taxGroup, double vatValue) {
+		double[] updated = Arrays.copyOf(vats, Math.max(vats.length, taxGroup + 1));
+		updated[taxGroup] = vatValue;
+		vats = updated;
+		recompute(taxGroup);
+	}
+
+	// Nuevo multiplicador del grupo y precios de sus libros
+	private void recompute(int taxGroup) {
+		double[] m = Arrays.copyOf(multipliers, Math.max(multipliers.length, taxGroup + 1));
+		double vat = taxGroup < vats.length ? vats[taxGroup] : 0;
+		double discount = taxGroup < discounts.length ? discounts[taxGroup] : Double.NaN;
+		m[taxGroup] = (1 + vat) * discount;
+		multipliers = m;
+
+		Entry[] table = entries.clone();
+		for (int id = 0; id < table.length; id++) {
+			Entry e = table[id];
+			if (e != null && e.taxGroup == taxGroup) {
+				table[id] = e.vat == vat ? new Entry(e.basePrice, taxGroup, vat, e.basePrice * m[taxGroup]) : null;
+			}
+		}
+		entries = table;
+	}
+}
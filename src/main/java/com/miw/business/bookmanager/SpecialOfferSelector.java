@@ -0,0 +1,111 @@
+package com.miw.business.bookmanager;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.logging.log4j.*;
+
+import com.miw.persistence.book.BookDataService;
+
+/**
+ * Elige el libro de la oferta especial sin cargar el catalogo: guarda solo los
+ * ids de los libros en un int[] y sortea uno.
+ *
+ * Con rotationMinutes = 0 se sortea un libro en cada peticion; con un valor
+ * mayor la oferta se elige en segundo plano y se mantiene durante ese tiempo.
+ */
+public class SpecialOfferSelector {
+	Logger logger = LogManager.getLogger(this.getClass());
+
+	@Autowired
+	private BookDataService bookDataService;
+
+	private int rotationMinutes = 0;
+
+	// Ids ordenados; null hasta la primera carga
+	private volatile int[] ids;
+	private volatile int currentId = -1;
+
+	private ScheduledExecutorService scheduler;
+
+	// Se configura desde XML
+	public void setRotationMinutes(int rotationMinutes) {
+		this.rotationMinutes = rotationMinutes;
+	}
+
+	public void start() {
+		if (rotationMinutes > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "special-offer-rotation");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleAtFixedRate(this::rotate, 0, rotationMinutes, TimeUnit.MINUTES);
+		}
+	}
+
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Id del libro en oferta, o -1 si no hay libros.
+	 */
+	public int nextId() throws Exception {
+		int id = currentId;
+		if (rotationMinutes > 0 && id >= 0) {
+			return id;
+		}
+		return pick();
+	}
+
+	/**
+	 * Vuelve a leer los ids de la BD, por ejemplo si el elegido ya no existe.
+	 */
+	public synchronized void refresh() throws Exception {
+		int[] loaded = bookDataService.getBookIds();
+		ids = loaded;
+		logger.debug("Special offer candidates: " + loaded.length + " books");
+		if (currentId >= 0 && Arrays.binarySearch(loaded, currentId) < 0) {
+			currentId = pick();
+		}
+	}
+
+	public synchronized void bookAdded(int id) {
+		int[] current = ids;
+		if (current == null || Arrays.binarySearch(current, id) >= 0) {
+			return; // Se cargara entero en la primera peticion
+		}
+		int[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = id;
+		Arrays.sort(updated);
+		ids = updated;
+	}
+
+	private void rotate() {
+		try {
+			currentId = pick();
+			logger.debug("Special offer rotated to book " + currentId);
+		} catch (Exception e) {
+			logger.error("Could not rotate the special offer", e);
+		}
+	}
+
+	private int pick() throws Exception {
+		int[] candidates = ids;
+		if (candidates == null) {
+			refresh();
+			candidates = ids;
+		}
+		if (candidates.length == 0) {
+			return -1;
+		}
+		return candidates[ThreadLocalRandom.current().nextInt(candidates.length)];
+	}
+}
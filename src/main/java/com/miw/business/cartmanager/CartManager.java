@@ -7,7 +7,14 @@ import com.miw.model.Book;
 import com.miw.model.CartItem;
 import com.miw.model.Reservation;
 import com.miw.business.bookmanager.BookManagerService;
+import com.miw.persistence.journal.OrderJournal;
+import com.miw.persistence.journal.OrderRecord;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class CartManager implements CartManagerService {
     
@@ -16,11 +23,15 @@ public class CartManager implements CartManagerService {
     @Autowired
     private BookManagerService bookManagerService;
     
+    @Autowired
+    private OrderJournal orderJournal;
+    
     @Override
     public void addBookToCart(Cart cart, int bookId, int quantity) throws Exception {
         logger.debug("Adding book " + bookId + " to cart. Quantity: " + quantity);
         
-        // 1. Obtener el libro (CON precio calculado por BookManager)
+        // 1. Obtener el libro (CON precio calculado por BookManager y con su stock):
+        //    es la unica lectura de la BD
         Book book = bookManagerService.getBookById(bookId);
         
         if (book == null) {
@@ -30,15 +41,13 @@ public class CartManager implements CartManagerService {
         // 2. Calcular cantidad total solicitada (considerando lo que ya está en el carrito)
         // IMPORTANTE: Solo contar items NO reservados, porque las reservas ya redujeron stock
         int totalRequested = quantity;
-        for (CartItem item : cart.getItems()) {
-            if (item.getBook().getId() == bookId && !item.isReserved()) {
-                totalRequested += item.getQuantity();
-                break;
-            }
+        CartItem inCart = cart.getItem(bookId, false);
+        if (inCart != null) {
+            totalRequested += inCart.getQuantity();
         }
         
-        // 3. Verificar stock disponible
-        if (!bookManagerService.checkStockAvailability(bookId, totalRequested)) {
+        // 3. Verificar stock disponible con el stock leido en el paso 1
+        if (book.getStock() < totalRequested) {
             throw new Exception("cart.notEnoughStock");
         }
         
@@ -57,31 +66,18 @@ public class CartManager implements CartManagerService {
     public void synchronizeCartWithReservations(Cart cart, List<Reservation> reservations) {
         logger.debug("Synchronizing cart with " + reservations.size() + " reservations");
         
+        // Hash join por id de libro: una pasada por las reservas y otra por el carrito
+        Map<Integer, Reservation> byBook = new HashMap<>(reservations.size() * 2);
+        for (Reservation res : reservations) {
+            byBook.put(res.getBook().getId(), res);
+        }
+        
         // 1. Eliminar del carrito reservas que ya no existen en BD
-        cart.getItems().removeIf(item -> {
-            if (item.isReserved()) {
-                boolean existsInDB = reservations.stream()
-                    .anyMatch(r -> r.getBook().getId() == item.getBookId());
-                return !existsInDB; // Eliminar si no existe en BD
-            }
-            return false;
-        });
+        cart.removeItemsIf(item -> item.isReserved() && !byBook.containsKey(item.getBookId()));
         
-        // 2. Agregar o actualizar reservas desde BD
-        for (Reservation res : reservations) {
-            CartItem existingItem = cart.getItems().stream()
-                .filter(item -> item.getBookId() == res.getBook().getId() && item.isReserved())
-                .findFirst()
-                .orElse(null);
-            
-            if (existingItem != null) {
-                // Actualizar cantidad desde BD (BD es la fuente de verdad)
-                existingItem.setQuantity(res.getQuantity());
-            } else {
-                // Añadir nueva reserva al carrito
-                CartItem item = new CartItem(res.getBook(), res.getQuantity(), true);
-                cart.getItems().add(item);
-            }
+        // 2. Agregar o actualizar reservas desde BD (BD es la fuente de verdad)
+        for (Reservation res : byBook.values()) {
+            cart.putReservedItem(res.getBook(), res.getQuantity());
         }
         
         logger.debug("Cart synchronized successfully");
@@ -95,26 +91,51 @@ public class CartManager implements CartManagerService {
             return true; // Carrito vacío no es un error
         }
         
+        // Agrupar las lineas NO reservadas por libro (las reservas ya redujeron stock)
+        Map<Integer, Integer> quantities = new TreeMap<>();
         for (CartItem item : cart.getItems()) {
-            // Solo procesar items NO reservados
             if (!item.isReserved()) {
-                try {
-                    boolean reduced = reduceStockForPurchase(
-                        item.getBookId(), 
-                        item.getQuantity()
-                    );
-                    
-                    if (!reduced) {
-                        logger.error("Failed to reduce stock for book: " + item.getBookId());
-                        return false;
-                    }
-                } catch (Exception e) {
-                    logger.error("Error processing item in checkout", e);
-                    return false;
-                }
+                quantities.merge(item.getBookId(), item.getQuantity(), Integer::sum);
+            }
+        }
+        
+        // Una sola transacción: o se descuentan todas las lineas o ninguna
+        try {
+            boolean reduced = bookManagerService.reduceStocks(quantities);
+            if (!reduced) {
+                logger.error("Failed to reduce stock for cart lines: " + quantities);
             }
+            return reduced;
+        } catch (Exception e) {
+            logger.error("Error processing items in checkout", e);
+            return false;
+        }
+    }
+    
+    @Override
+    public void recordPurchase(String username, Collection<CartItem> items) {
+        long now = System.currentTimeMillis();
+        List<OrderRecord> records = new ArrayList<>(items.size());
+        for (CartItem item : items) {
+            records.add(new OrderRecord(username, item.getBookId(), item.getQuantity(),
+                item.getUnitPrice(), now, item.isReserved()));
         }
         
-        return true;
+        // La compra ya esta confirmada en BD: un fallo del diario no la deshace
+        try {
+            orderJournal.append(records);
+        } catch (Exception e) {
+            logger.error("Could not record purchase of " + username + " in the order journal: " + records, e);
+        }
+    }
+    
+    @Override
+    public void loadBookDetails(Cart cart) throws Exception {
+        List<Integer> missing = cart.getMissingBookIds();
+        if (missing.isEmpty()) {
+            return;
+        }
+        // Una sola lectura (cache de segundo nivel primero); el precio de las lineas no cambia
+        cart.attachBooks(bookManagerService.getBooksByIds(missing));
     }
 }
@@ -1,12 +1,19 @@
 package com.miw.business.cartmanager;
 
 import com.miw.model.Cart;
+import java.util.Collection;
 import java.util.List;
+import com.miw.model.CartItem;
 import com.miw.model.Reservation;
 
 public interface CartManagerService {
     void addBookToCart(Cart cart, int bookId, int quantity) throws Exception;
     boolean reduceStockForPurchase(int bookId, int quantity) throws Exception;
     void synchronizeCartWithReservations(Cart cart, List<Reservation> reservations);
+    // Descuenta el stock de todas las compras normales del carrito en una transacción (todo o nada)
     boolean processNormalPurchases(Cart cart) throws Exception;
+    // Anota en el diario de pedidos las lineas de una compra ya completada
+    void recordPurchase(String username, Collection<CartItem> items);
+    // Carga del catalogo los datos de los libros de las lineas que no los tienen (para pintar el carrito)
+    void loadBookDetails(Cart cart) throws Exception;
 }
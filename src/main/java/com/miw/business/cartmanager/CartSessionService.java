@@ -1,40 +1,93 @@
 package com.miw.business.cartmanager;
 
-import org.springframework.stereotype.Service;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.miw.business.lockmanager.BookLockManager;
 import com.miw.model.Cart;
-import jakarta.servlet.http.HttpSession;
+import com.miw.persistence.cart.CartStore;
+import com.miw.persistence.cart.InMemoryCartStore;
 
-@Service
+/**
+ * Carrito de cada usuario, guardado en un CartStore (se configura en
+ * beans.xml) en lugar de en la sesion: con un almacen persistente el carrito
+ * sobrevive a reinicios y no obliga a que el usuario vuelva siempre al mismo
+ * servidor.
+ *
+ * Cada peticion trabaja con su propia copia y la guarda entera, asi que leer,
+ * cambiar y guardar tiene que hacerse con el cerrojo del usuario
+ * (BookLockManager.lockUser): si no, dos peticiones simultaneas del mismo
+ * usuario se pisan. modify lo hace en una sola llamada; updateCart y clearCart
+ * fallan si el hilo no tiene el cerrojo. El almacen no guarda los datos de los
+ * libros (ver Cart).
+ */
 public class CartSessionService {
-    
-    private static final String CART_ATTRIBUTE = "cart";
-    
+
+    @Autowired
+    private BookLockManager bookLockManager;
+
+    private CartStore cartStore = new InMemoryCartStore();
+
+    // Se configura desde XML
+    public void setCartStore(CartStore cartStore) {
+        this.cartStore = cartStore;
+    }
+
+    public CartStore getCartStore() {
+        return cartStore;
+    }
+
+    /**
+     * Obtiene el carrito guardado del usuario o uno nuevo si no tiene
+     */
+    public Cart getOrCreateCart(String username) {
+        byte[] stored = cartStore.get(username);
+        return stored == null ? new Cart() : Cart.fromBytes(stored);
+    }
+
     /**
-     * Obtiene el carrito de la sesión o crea uno nuevo si no existe
+     * Lee el carrito del usuario, le aplica change y lo guarda, todo con el
+     * cerrojo del usuario. Devuelve el carrito guardado.
      */
-    public Cart getOrCreateCart(HttpSession session) {
-        Cart cart = (Cart) session.getAttribute(CART_ATTRIBUTE);
-        if (cart == null) {
-            cart = new Cart();
-            session.setAttribute(CART_ATTRIBUTE, cart);
+    public Cart modify(String username, Consumer<Cart> change) {
+        BookLockManager.Handle user = bookLockManager.lockUser(username);
+        try {
+            Cart cart = getOrCreateCart(username);
+            change.accept(cart);
+            updateCart(username, cart);
+            return cart;
+        } finally {
+            user.close();
         }
-        return cart;
     }
-    
+
+    /**
+     * Guarda el carrito del usuario (con su cerrojo)
+     */
+    public void updateCart(String username, Cart cart) {
+        checkLocked(username);
+        // Tambien vacio: conserva la version de reservas sincronizada
+        cartStore.put(username, cart.toBytes());
+    }
+
     /**
-     * Actualiza el carrito en la sesión
+     * Elimina el carrito del usuario (con su cerrojo)
      */
-    public void updateCart(HttpSession session, Cart cart) {
-        session.setAttribute(CART_ATTRIBUTE, cart);
+    public void clearCart(String username) {
+        checkLocked(username);
+        cartStore.remove(username);
     }
-    
+
     /**
-     * Elimina el carrito de la sesión
+     * Quita del carrito guardado lo que se ha comprado en purchased: las lineas
+     * reservadas enteras y de las normales solo las unidades compradas. Lo que se
+     * haya anadido mientras tanto se queda en el carrito.
      */
-    public void clearCart(HttpSession session) {
-        session.removeAttribute(CART_ATTRIBUTE);
+    public Cart removePurchasedItems(String username, Cart purchased) {
+        return modify(username, cart -> cart.removeItems(purchased));
     }
-    
+
     /**
      * Elimina un item del carrito (reservado o no)
      */
@@ -45,5 +98,10 @@ public class CartSessionService {
             cart.removeNonReservedItem(bookId);
         }
     }
-}
 
+    private void checkLocked(String username) {
+        if (!bookLockManager.holdsUser(username)) {
+            throw new IllegalStateException("Cart of " + username + " changed without the user lock");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.miw.business.cartmanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.miw.metrics.Histogram;
+
+/**
+ * Latencia y rendimiento del checkout, separados para la via sincrona y para
+ * CheckoutPipeline, para poder compararlas con la misma carga.
+ */
+public class CheckoutMetrics {
+
+	private static final CheckoutMetrics INSTANCE = new CheckoutMetrics();
+
+	private final Histogram syncLatency = new Histogram();
+	private final Histogram pipelineLatency = new Histogram();
+	private final Histogram queueWait = new Histogram();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batchedCheckouts = new AtomicLong();
+	private final AtomicLong batchFallbacks = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong crossPartition = new AtomicLong();
+	private final long startNanos = System.nanoTime();
+
+	public static CheckoutMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	public void recordSync(long nanos) {
+		syncLatency.recordNanos(nanos);
+	}
+
+	void recordPipeline(long nanos) {
+		pipelineLatency.recordNanos(nanos);
+	}
+
+	void recordQueueWait(long nanos) {
+		queueWait.recordNanos(nanos);
+	}
+
+	void batch(int size, boolean fallback) {
+		batches.incrementAndGet();
+		batchedCheckouts.addAndGet(size);
+		if (fallback) {
+			batchFallbacks.incrementAndGet();
+		}
+	}
+
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	// Carritos con libros de varias particiones (cola aparte, sin lotes)
+	void crossPartition() {
+		crossPartition.incrementAndGet();
+	}
+
+	public Histogram getSyncLatency() {
+		return syncLatency;
+	}
+
+	public Histogram getPipelineLatency() {
+		return pipelineLatency;
+	}
+
+	// Checkouts por segundo desde el arranque
+	private double throughput(Histogram latency) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0 : latency.getCount() / seconds;
+	}
+
+	@Override
+	public String toString() {
+		long b = batches.get();
+		return "Checkout [sync: " + syncLatency + ", throughput=" + String.format("%.1f", throughput(syncLatency))
+				+ "/s]\n"
+				+ "Checkout [pipeline: " + pipelineLatency + ", throughput="
+				+ String.format("%.1f", throughput(pipelineLatency)) + "/s, queueWait: p99="
+				+ queueWait.getPercentileMicros(99) + "us, batches=" + b + ", avgBatch="
+				+ String.format("%.2f", b == 0 ? 0 : (double) batchedCheckouts.get() / b) + ", batchFallbacks="
+				+ batchFallbacks.get() + ", crossPartition=" + crossPartition.get() + ", rejected=" + rejected.get() + "]";
+	}
+}
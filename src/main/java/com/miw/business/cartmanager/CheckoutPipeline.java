@@ -0,0 +1,335 @@
+package com.miw.business.cartmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.logging.log4j.*;
+
+import com.miw.business.lockmanager.BookLockManager;
+import com.miw.business.reservationmanager.ReservationManagerService;
+import com.miw.model.Cart;
+import com.miw.model.CartItem;
+
+/**
+ * Checkout asincrono con un unico escritor por libro: cada libro pertenece a
+ * una particion (bookId modulo partitions) y cada particion tiene una cola
+ * acotada y un hilo que la aplica. Un carrito cuyos libros son todos de la
+ * misma particion va a su cola; uno que mezcla particiones va a una cola
+ * aparte, con su propio hilo, que aplica esas compras de una en una. Las
+ * franjas de BookLockManager siguen haciendo falta frente a esa cola y a las
+ * operaciones sincronas (comprar una linea, reservar...).
+ *
+ * Cada hilo de particion toma de golpe todo lo que haya en su cola (hasta
+ * maxBatch) e intenta comprar todo el lote (stock y reservas de todos los
+ * carritos) en una sola transaccion; si algo falla no queda nada hecho y
+ * repite compra a compra, cada una tambien en una sola transaccion, para que
+ * cada una siga siendo todo o nada.
+ *
+ * Antes de comprar, con el cerrojo de cada usuario, se comprueba que el
+ * carrito guardado sigue teniendo lo encolado: si no (ya se compro en un
+ * reintento o el usuario lo ha cambiado) esa compra falla con "cart.changed".
+ * Despues, todavia con el cerrojo del usuario, lo comprado sale del carrito, y
+ * solo entonces se completa el futuro: el carrito queda bien aunque la
+ * peticion ya haya contestado por tiempo (resultTimeoutMillis).
+ *
+ * Con partitions = 0 el pipeline esta apagado y el checkout es sincrono.
+ */
+public class CheckoutPipeline {
+	Logger logger = LogManager.getLogger(this.getClass());
+
+	@Autowired
+	private ReservationManagerService reservationManagerService;
+
+	@Autowired
+	private BookLockManager bookLockManager;
+
+	@Autowired
+	private CartManagerService cartManagerService;
+
+	@Autowired
+	private CartSessionService cartSessionService;
+
+	private final CheckoutMetrics metrics = CheckoutMetrics.getInstance();
+
+	private int partitions = 0;
+	private int queueCapacity = 1024;
+	private int maxBatch = 64;
+	private long resultTimeoutMillis = 30000;
+
+	// Una cola por particion y, la ultima, la de los carritos que mezclan particiones
+	private List<BlockingQueue<Command>> queues;
+	private List<Thread> writers;
+	private volatile boolean running;
+
+	private static class Command {
+		final String username;
+		final Cart cart;
+		final Set<Integer> bookIds = new TreeSet<>();
+		final CompletableFuture<Boolean> result = new CompletableFuture<>();
+		final long enqueuedNanos = System.nanoTime();
+
+		Command(String username, Cart cart) {
+			this.username = username;
+			this.cart = cart;
+			for (CartItem item : cart.getItems()) {
+				bookIds.add(item.getBookId());
+			}
+		}
+	}
+
+	// Se configura desde XML
+	public void setPartitions(int partitions) {
+		this.partitions = partitions;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public void setMaxBatch(int maxBatch) {
+		this.maxBatch = maxBatch;
+	}
+
+	public void setResultTimeoutMillis(long resultTimeoutMillis) {
+		this.resultTimeoutMillis = resultTimeoutMillis;
+	}
+
+	// Lo que la peticion espera al escritor antes de contestar que la compra sigue en curso
+	public long getResultTimeoutMillis() {
+		return resultTimeoutMillis;
+	}
+
+	public boolean isEnabled() {
+		return running;
+	}
+
+	public void start() {
+		if (partitions <= 0) {
+			return;
+		}
+		queues = new ArrayList<>(partitions + 1);
+		writers = new ArrayList<>(partitions + 1);
+		running = true;
+		for (int p = 0; p <= partitions; p++) {
+			BlockingQueue<Command> queue = new ArrayBlockingQueue<>(queueCapacity);
+			queues.add(queue);
+			// La cola de los carritos mezclados no agrupa: sus libros son de otros escritores
+			int batchLimit = p < partitions ? maxBatch : 1;
+			Thread writer = new Thread(() -> drain(queue, batchLimit),
+					p < partitions ? "checkout-writer-" + p : "checkout-writer-cross");
+			writer.setDaemon(true);
+			writers.add(writer);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Deja de aceptar compras, espera a que cada escritor termine el lote que
+	 * tenga entre manos y hace fallar lo que quede en las colas.
+	 */
+	public void stop() {
+		if (writers == null) {
+			return;
+		}
+		running = false;
+		for (Thread writer : writers) {
+			try {
+				writer.join(10_000);
+				if (writer.isAlive()) {
+					logger.warn("Checkout writer " + writer.getName() + " did not stop in time");
+					writer.interrupt();
+					writer.join(1_000);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (BlockingQueue<Command> queue : queues) {
+			failPending(queue);
+		}
+		writers = null;
+	}
+
+	/**
+	 * Encola la compra de una copia del carrito. El futuro devuelve true si se
+	 * ha comprado todo, false si faltaba stock o alguna reserva, y falla si la
+	 * cola esta llena ("cart.checkoutBusy"), el carrito ha cambiado
+	 * ("cart.changed") o la compra da error.
+	 */
+	public CompletableFuture<Boolean> submit(String username, Cart cart) {
+		// El carrito guardado puede cambiar mientras la compra espera en la cola
+		Command command = new Command(username, cart.copy());
+		if (command.bookIds.isEmpty()) {
+			command.result.complete(true);
+			return command.result;
+		}
+		if (!running) {
+			command.result.completeExceptionally(new Exception("cart.checkoutError"));
+			return command.result;
+		}
+
+		int partition = partitionOf(command.bookIds);
+		if (partition == partitions) {
+			metrics.crossPartition();
+		}
+		if (!queues.get(partition).offer(command)) {
+			metrics.rejected();
+			command.result.completeExceptionally(new Exception("cart.checkoutBusy"));
+		} else if (!running) {
+			// stop() pudo vaciar ya esta cola
+			failPending(queues.get(partition));
+		}
+		return command.result;
+	}
+
+	// Particion comun a todos los libros o, si mezclan particiones, la cola aparte
+	private int partitionOf(Set<Integer> bookIds) {
+		int partition = -1;
+		for (int bookId : bookIds) {
+			int p = Math.floorMod(bookId, partitions);
+			if (partition >= 0 && p != partition) {
+				return partitions;
+			}
+			partition = p;
+		}
+		return partition;
+	}
+
+	private void drain(BlockingQueue<Command> queue, int batchLimit) {
+		List<Command> batch = new ArrayList<>(batchLimit);
+		while (running) {
+			try {
+				Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchLimit - 1);
+				apply(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (RuntimeException e) {
+				// Un fallo inesperado no puede dejar al escritor parado ni al lote sin respuesta
+				logger.error("Error applying a batch of " + batch.size() + " checkouts", e);
+				for (Command command : batch) {
+					command.result.completeExceptionally(e);
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+
+		// Lo que quede en la cola no se va a procesar
+		failPending(queue);
+	}
+
+	private static void failPending(BlockingQueue<Command> queue) {
+		Command left;
+		while ((left = queue.poll()) != null) {
+			left.result.completeExceptionally(new Exception("cart.checkoutError"));
+		}
+	}
+
+	private void apply(List<Command> batch) {
+		long start = System.nanoTime();
+		Set<String> usernames = new TreeSet<>();
+		for (Command command : batch) {
+			metrics.recordQueueWait(start - command.enqueuedNanos);
+			usernames.add(command.username);
+		}
+
+		// Resultado de cada compra: true, false o la excepcion
+		Object[] results = new Object[batch.size()];
+
+		// Primero los usuarios y despues los libros, como en el checkout sincrono
+		BookLockManager.Handle users = bookLockManager.lockUsers(usernames);
+		try {
+			// Solo se compra lo que sigue en el carrito guardado; dos compras del mismo
+			// usuario en el lote se descuentan una detras de otra
+			Map<String, Cart> stored = new HashMap<>();
+			List<Integer> accepted = new ArrayList<>(batch.size());
+			Set<Integer> bookIds = new TreeSet<>();
+			Map<String, List<Cart>> carts = new HashMap<>();
+			for (int i = 0; i < batch.size(); i++) {
+				Command command = batch.get(i);
+				Cart cart = stored.computeIfAbsent(command.username, cartSessionService::getOrCreateCart);
+				if (!cart.containsItems(command.cart)) {
+					results[i] = new Exception("cart.changed");
+					continue;
+				}
+				cart.removeItems(command.cart);
+				accepted.add(i);
+				bookIds.addAll(command.bookIds);
+				carts.computeIfAbsent(command.username, u -> new ArrayList<>()).add(command.cart);
+			}
+
+			// Mismos cerrojos que el resto de operaciones sobre estos libros
+			BookLockManager.Handle lock = bookLockManager.lockAll(bookIds);
+			try {
+				// Stock y reservas de todo el lote en una transaccion: si falla, nada ha cambiado
+				boolean batchPurchased = false;
+				if (accepted.size() > 1) {
+					try {
+						batchPurchased = reservationManagerService.purchaseCarts(carts);
+					} catch (Exception e) {
+						logger.error("Error purchasing a batch of " + accepted.size() + " checkouts", e);
+					}
+				}
+				metrics.batch(accepted.size(), accepted.size() > 1 && !batchPurchased);
+
+				for (int i : accepted) {
+					Command command = batch.get(i);
+					try {
+						boolean success = batchPurchased
+								|| reservationManagerService.purchaseCart(command.username, command.cart);
+						if (success) {
+							cartManagerService.recordPurchase(command.username, command.cart.getItems());
+						}
+						results[i] = success;
+					} catch (Exception e) {
+						logger.error("Error processing checkout of " + command.username, e);
+						results[i] = e;
+					}
+				}
+			} finally {
+				lock.close();
+			}
+
+			// Lo comprado sale del carrito aqui, conteste o no todavia la peticion
+			for (int i : accepted) {
+				Command command = batch.get(i);
+				if (Boolean.TRUE.equals(results[i])) {
+					try {
+						cartSessionService.removePurchasedItems(command.username, command.cart);
+					} catch (RuntimeException e) {
+						logger.error("Error removing purchased items from the cart of " + command.username, e);
+					}
+				}
+			}
+		} finally {
+			users.close();
+		}
+
+		// Sin ningun cerrojo: lo que encadene la peticion corre en este hilo
+		for (int i = 0; i < batch.size(); i++) {
+			Command command = batch.get(i);
+			metrics.recordPipeline(System.nanoTime() - command.enqueuedNanos);
+			if (results[i] instanceof Exception) {
+				command.result.completeExceptionally((Exception) results[i]);
+			} else {
+				command.result.complete((Boolean) results[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package com.miw.business.lockmanager;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.miw.metrics.Histogram;
+
+/**
+ * Cerrojos por libro repartidos en un numero fijo de franjas (stripes): dos
+ * libros solo compiten si caen en la misma franja.
+ *
+ * Para bloquear varios libros a la vez se toman las franjas siempre en orden
+ * ascendente, de modo que dos compras con los mismos libros no pueden
+ * bloquearse mutuamente.
+ *
+ * Junto a las de los libros hay otras tantas franjas por usuario, que
+ * serializan los cambios del carrito de cada usuario (leer, modificar y
+ * guardar). Si se necesitan ambas, primero se toma la del usuario y despues
+ * las de los libros, nunca al reves. Uso:
+ *
+ * <pre>
+ * BookLockManager.Handle user = bookLockManager.lockUser(username);
+ * try {
+ *     BookLockManager.Handle lock = bookLockManager.lockAll(bookIds);
+ *     try {
+ *         ...
+ *     } finally {
+ *         lock.close();
+ *     }
+ * } finally {
+ *     user.close();
+ * }
+ * </pre>
+ */
+public class BookLockManager {
+
+	private ReentrantLock[] locks;
+	private ReentrantLock[] userLocks;
+	private int mask;
+
+	// Metricas por franja
+	private AtomicLongArray acquisitions;
+	private AtomicLongArray contended;
+	private AtomicLongArray waitNanos;
+	private AtomicLongArray maxQueueLength;
+
+	private final Histogram waitTime = new Histogram();
+
+	private final AtomicLong userAcquisitions = new AtomicLong();
+	private final AtomicLong userContended = new AtomicLong();
+
+	public BookLockManager() {
+		setStripes(64);
+	}
+
+	// Se configura desde XML; se redondea a potencia de 2
+	public void setStripes(int stripes) {
+		int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		locks = new ReentrantLock[size];
+		userLocks = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			locks[i] = new ReentrantLock();
+			userLocks[i] = new ReentrantLock();
+		}
+		mask = size - 1;
+		acquisitions = new AtomicLongArray(size);
+		contended = new AtomicLongArray(size);
+		waitNanos = new AtomicLongArray(size);
+		maxQueueLength = new AtomicLongArray(size);
+	}
+
+	public int getStripes() {
+		return locks.length;
+	}
+
+	/**
+	 * Bloquea la franja de un libro hasta que se cierre el Handle.
+	 */
+	public Handle lock(int bookId) {
+		int stripe = stripeOf(bookId);
+		acquire(stripe);
+		return new Handle(locks, new int[] { stripe });
+	}
+
+	/**
+	 * Bloquea las franjas de todos los libros, en orden ascendente de franja.
+	 */
+	public Handle lockAll(Collection<Integer> bookIds) {
+		int[] stripes = new int[bookIds.size()];
+		int n = 0;
+		for (int bookId : bookIds) {
+			stripes[n++] = stripeOf(bookId);
+		}
+		stripes = distinctSorted(stripes);
+
+		int acquired = 0;
+		try {
+			for (int stripe : stripes) {
+				acquire(stripe);
+				acquired++;
+			}
+		} finally {
+			if (acquired < stripes.length) {
+				release(locks, stripes, acquired);
+			}
+		}
+		return new Handle(locks, stripes);
+	}
+
+	/**
+	 * Bloquea la franja de un usuario (su carrito) hasta que se cierre el
+	 * Handle. Es reentrante: quien ya la tiene puede volver a pedirla.
+	 */
+	public Handle lockUser(String username) {
+		return lockUsers(List.of(username));
+	}
+
+	/**
+	 * Bloquea las franjas de varios usuarios, en orden ascendente de franja.
+	 */
+	public Handle lockUsers(Collection<String> usernames) {
+		int[] stripes = new int[usernames.size()];
+		int n = 0;
+		for (String username : usernames) {
+			stripes[n++] = stripeOf(username.hashCode());
+		}
+		stripes = distinctSorted(stripes);
+
+		int acquired = 0;
+		try {
+			for (int stripe : stripes) {
+				ReentrantLock lock = userLocks[stripe];
+				userAcquisitions.incrementAndGet();
+				if (!lock.tryLock()) {
+					userContended.incrementAndGet();
+					lock.lock();
+				}
+				acquired++;
+			}
+		} finally {
+			if (acquired < stripes.length) {
+				release(userLocks, stripes, acquired);
+			}
+		}
+		return new Handle(userLocks, stripes);
+	}
+
+	/**
+	 * true si el hilo actual tiene la franja del usuario.
+	 */
+	public boolean holdsUser(String username) {
+		return userLocks[stripeOf(username.hashCode())].isHeldByCurrentThread();
+	}
+
+	private int stripeOf(int bookId) {
+		// Mezcla los bits para que ids consecutivos no dependan solo de los bits bajos
+		int h = bookId * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	// Ordena y quita repetidos: cada franja se toma una sola vez
+	private static int[] distinctSorted(int[] stripes) {
+		Arrays.sort(stripes);
+		int distinct = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			if (distinct == 0 || stripes[distinct - 1] != stripes[i]) {
+				stripes[distinct++] = stripes[i];
+			}
+		}
+		return Arrays.copyOf(stripes, distinct);
+	}
+
+	private void acquire(int stripe) {
+		ReentrantLock lock = locks[stripe];
+		acquisitions.incrementAndGet(stripe);
+		if (lock.tryLock()) {
+			waitTime.recordNanos(0);
+			return;
+		}
+
+		contended.incrementAndGet(stripe);
+		long queued = lock.getQueueLength() + 1;
+		maxQueueLength.accumulateAndGet(stripe, queued, Math::max);
+
+		long start = System.nanoTime();
+		lock.lock();
+		long waited = System.nanoTime() - start;
+		waitNanos.addAndGet(stripe, waited);
+		waitTime.recordNanos(waited);
+	}
+
+	// Libera en orden inverso las primeras count franjas
+	private static void release(ReentrantLock[] locks, int[] stripes, int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			locks[stripes[i]].unlock();
+		}
+	}
+
+	public long getAcquisitions() {
+		return sum(acquisitions);
+	}
+
+	public long getContended() {
+		return sum(contended);
+	}
+
+	public Histogram getWaitTime() {
+		return waitTime;
+	}
+
+	private static long sum(AtomicLongArray values) {
+		long total = 0;
+		for (int i = 0; i < values.length(); i++) {
+			total += values.get(i);
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("BookLocks [stripes=").append(locks.length)
+			.append(", acquisitions=").append(getAcquisitions())
+			.append(", contended=").append(getContended())
+			.append(", wait: ").append(waitTime)
+			.append(", userAcquisitions=").append(userAcquisitions.get())
+			.append(", userContended=").append(userContended.get())
+			.append("]\n");
+
+		// Solo las franjas que han tenido esperas
+		for (int i = 0; i < locks.length; i++) {
+			long c = contended.get(i);
+			if (c > 0) {
+				sb.append("  stripe ").append(i)
+					.append(": acquisitions=").append(acquisitions.get(i))
+					.append(", contended=").append(c)
+					.append(", waitMs=").append(waitNanos.get(i) / 1_000_000)
+					.append(", queueLength=").append(locks[i].getQueueLength())
+					.append(", maxQueueLength=").append(maxQueueLength.get(i))
+					.append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Franjas tomadas por lock, lockAll, lockUser o lockUsers; close() las libera.
+	 */
+	public static class Handle implements AutoCloseable {
+		private final ReentrantLock[] locks;
+		private final int[] stripes;
+		private boolean closed;
+
+		private Handle(ReentrantLock[] locks, int[] stripes) {
+			this.locks = locks;
+			this.stripes = stripes;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				release(locks, stripes, stripes.length);
+			}
+		}
+	}
+}
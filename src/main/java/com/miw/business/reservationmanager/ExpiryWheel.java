@@ -0,0 +1,92 @@
+package com.miw.business.reservationmanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rueda de tiempos (hashed timing wheel) con los vencimientos de las reservas.
+ *
+ * Cada casilla cubre tickMillis y la rueda da la vuelta cada
+ * wheelSize * tickMillis; un vencimiento mas lejano se guarda en su casilla y
+ * se salta en cada vuelta hasta que le llega la hora. Programar es O(1) y cada
+ * tick solo mira su casilla, sin ordenar nada.
+ */
+class ExpiryWheel {
+
+	private final long tickMillis;
+	private final int mask;
+
+	// Por casilla: ids y vencimientos en paralelo, sin objetos por entrada
+	private final int[][] ids;
+	private final long[][] deadlines;
+	private final int[] sizes;
+
+	private long currentTick;
+	private int pending;
+
+	ExpiryWheel(long tickMillis, int wheelSize, long nowMillis) {
+		int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+		this.tickMillis = tickMillis;
+		this.mask = size - 1;
+		this.ids = new int[size][8];
+		this.deadlines = new long[size][8];
+		this.sizes = new int[size];
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * Programa el vencimiento de una reserva. Si ya ha vencido, sale en el
+	 * siguiente tick.
+	 */
+	synchronized void schedule(int id, long deadlineMillis) {
+		// Primer tick que empieza despues del vencimiento
+		long tick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+		int slot = (int) (tick & mask);
+
+		int n = sizes[slot];
+		if (n == ids[slot].length) {
+			ids[slot] = Arrays.copyOf(ids[slot], n * 2);
+			deadlines[slot] = Arrays.copyOf(deadlines[slot], n * 2);
+		}
+		ids[slot][n] = id;
+		deadlines[slot][n] = deadlineMillis;
+		sizes[slot] = n + 1;
+		pending++;
+	}
+
+	/**
+	 * Avanza la rueda hasta nowMillis y devuelve los ids vencidos.
+	 */
+	synchronized List<Integer> advance(long nowMillis) {
+		List<Integer> expired = new ArrayList<>();
+		long target = nowMillis / tickMillis;
+
+		// Tras una parada larga basta con una vuelta completa
+		long from = Math.max(currentTick + 1, target - mask);
+		for (long tick = from; tick <= target; tick++) {
+			int slot = (int) (tick & mask);
+			int[] slotIds = ids[slot];
+			long[] slotDeadlines = deadlines[slot];
+			int kept = 0;
+			for (int i = 0; i < sizes[slot]; i++) {
+				if (slotDeadlines[i] <= nowMillis) {
+					expired.add(slotIds[i]);
+				} else {
+					// Aun le quedan vueltas
+					slotIds[kept] = slotIds[i];
+					slotDeadlines[kept] = slotDeadlines[i];
+					kept++;
+				}
+			}
+			pending -= sizes[slot] - kept;
+			sizes[slot] = kept;
+		}
+		currentTick = Math.max(currentTick, target);
+		return expired;
+	}
+
+	synchronized int getPending() {
+		return pending;
+	}
+}
@@ -0,0 +1,178 @@
+package com.miw.business.reservationmanager;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.apache.logging.log4j.*;
+
+import com.miw.model.Reservation;
+import com.miw.persistence.reservation.ReservationDataService;
+
+/**
+ * Caducidad de las reservas: una reserva con mas de ttlMinutes se cancela y su
+ * stock vuelve al libro.
+ *
+ * Los vencimientos pendientes estan en memoria en una ExpiryWheel que se
+ * reconstruye desde la BD al arrancar. Cada tick se cancelan las reservas
+ * vencidas por lotes: un borrado y una devolucion de stock agrupada por libro
+ * por lote, en una sola transaccion.
+ */
+public class ReservationExpiryService {
+	Logger logger = LogManager.getLogger(this.getClass());
+
+	@Autowired
+	private ReservationDataService reservationDataService;
+
+	@Autowired
+	private ReservationVersions reservationVersions;
+
+	private int ttlMinutes = 0;
+	private long tickMillis = 1000;
+	private int wheelSize = 512;
+	private int batchSize = 500;
+
+	private volatile ExpiryWheel wheel;
+	private volatile boolean rebuilt;
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong sweepErrors = new AtomicLong();
+	private volatile int lastDue;
+	private volatile long lastSweepMillis;
+
+	// Se configura desde XML; 0 = las reservas no caducan
+	public void setTtlMinutes(int ttlMinutes) {
+		this.ttlMinutes = ttlMinutes;
+	}
+
+	public void setTickMillis(long tickMillis) {
+		this.tickMillis = tickMillis;
+	}
+
+	public void setWheelSize(int wheelSize) {
+		this.wheelSize = wheelSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void start() {
+		if (ttlMinutes <= 0) {
+			return;
+		}
+		wheel = new ExpiryWheel(tickMillis, wheelSize, System.currentTimeMillis());
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "reservation-expiry");
+			t.setDaemon(true);
+			return t;
+		});
+		// La rueda se reconstruye en el primer tick, no al crear el contexto
+		scheduler.scheduleWithFixedDelay(this::tick, 0, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Programa la caducidad de una reserva recien creada.
+	 */
+	public void schedule(Reservation reservation) {
+		ExpiryWheel w = wheel;
+		if (w != null) {
+			w.schedule(reservation.getId(), deadline(reservation));
+		}
+	}
+
+	private long deadline(Reservation reservation) {
+		LocalDateTime date = reservation.getReservationDate();
+		long created = date == null ? System.currentTimeMillis()
+				: date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		return created + ttlMinutes * 60_000L;
+	}
+
+	private void tick() {
+		try {
+			if (!rebuilt) {
+				rebuild();
+			}
+			sweep();
+		} catch (Exception e) {
+			sweepErrors.incrementAndGet();
+			logger.error("Error expiring reservations", e);
+		}
+	}
+
+	private void rebuild() throws Exception {
+		ExpiryWheel w = wheel;
+		long loaded = reservationDataService.streamReservations(r -> w.schedule(r.getId(), deadline(r)));
+		rebuilt = true;
+		logger.info("Reservation expiry rebuilt with " + loaded + " reservations, ttl " + ttlMinutes + " min");
+	}
+
+	private void sweep() throws Exception {
+		long start = System.currentTimeMillis();
+		List<Integer> due = wheel.advance(start);
+		lastDue = due.size();
+		if (due.isEmpty()) {
+			return;
+		}
+
+		// Mismo corte que el de la rueda; el milisegundo de mas cubre la parte de
+		// reservationDate que se pierde al pasarla a milisegundos
+		LocalDateTime reservedBefore = LocalDateTime.ofInstant(Instant.ofEpochMilli(start + 1), ZoneId.systemDefault())
+				.minusMinutes(ttlMinutes);
+		for (int from = 0; from < due.size(); from += batchSize) {
+			List<Integer> batch = due.subList(from, Math.min(from + batchSize, due.size()));
+			try {
+				List<String> usernames = reservationDataService.expireReservations(batch, reservedBefore);
+				expired.addAndGet(usernames.size());
+				batches.incrementAndGet();
+				for (String username : new HashSet<>(usernames)) {
+					reservationVersions.changed(username);
+				}
+			} catch (Exception e) {
+				// Se reintentan en el siguiente tick
+				sweepErrors.incrementAndGet();
+				logger.error("Error expiring a batch of " + batch.size() + " reservations", e);
+				long retry = System.currentTimeMillis();
+				for (int id : batch) {
+					wheel.schedule(id, retry);
+				}
+			}
+		}
+		lastSweepMillis = System.currentTimeMillis() - start;
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Vencimientos pendientes en la rueda (incluye reservas ya compradas o
+	 * canceladas, que se descartan al vencer).
+	 */
+	public int getPending() {
+		ExpiryWheel w = wheel;
+		return w == null ? 0 : w.getPending();
+	}
+
+	@Override
+	public String toString() {
+		return "ReservationExpiry [ttlMinutes=" + ttlMinutes + ", rebuilt=" + rebuilt + ", pending=" + getPending()
+				+ ", lastDue=" + lastDue + ", expired=" + getExpired() + ", batches=" + batches.get()
+				+ ", sweepErrors=" + sweepErrors.get() + ", lastSweepMillis=" + lastSweepMillis + "]";
+	}
+}
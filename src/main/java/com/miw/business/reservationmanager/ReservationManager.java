@@ -1,6 +1,13 @@
 package com.miw.business.reservationmanager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.logging.log4j.*;
 import com.miw.business.bookmanager.BookManagerService;
@@ -8,6 +15,7 @@ import com.miw.model.Book;
 import com.miw.model.Cart;
 import com.miw.model.CartItem;
 import com.miw.model.Reservation;
+import com.miw.persistence.RowHandler;
 import com.miw.persistence.reservation.ReservationDataService;
 
 public class ReservationManager implements ReservationManagerService {
@@ -20,42 +28,35 @@ public class ReservationManager implements ReservationManagerService {
     @Autowired
     private BookManagerService bookManagerService;
     
+    @Autowired
+    private ReservationExpiryService reservationExpiryService;
+    
+    @Autowired
+    private ReservationVersions reservationVersions;
+    
     @Override
     public Reservation createReservation(String username, int bookId, int quantity) throws Exception {
         logger.debug("Creating reservation for user " + username + ", book " + bookId + ", qty: " + quantity);
         
-        // 1. Verificar que el libro existe (usando BookManager para el precio)
-        Book book = bookManagerService.getBookById(bookId);
-        if (book == null) {
-            throw new Exception("reservation.bookNotFound");
-        }
-        
-        // 2. Verificar stock disponible
-        if (!bookManagerService.checkStockAvailability(bookId, quantity)) {
+        // Stock y reserva en una sola transaccion: si algo falla no hay nada que deshacer
+        Reservation reservation = reservationDataService.reserve(username, bookId, quantity);
+        if (reservation == null) {
+            // Solo al fallar: distinguir libro inexistente de falta de stock
+            if (bookManagerService.getBookById(bookId) == null) {
+                throw new Exception("reservation.bookNotFound");
+            }
             throw new Exception("reservation.notEnoughStock");
         }
+        reservationVersions.changed(username);
         
-        // 3. Reducir el stock (la reserva bloquea unidades)
-        boolean stockReduced = bookManagerService.reduceStock(bookId, quantity);
-        if (!stockReduced) {
-            throw new Exception("reservation.stockReductionFailed");
-        }
+        // Si ya estaba programada, la entrada repetida no borra nada al vencer
+        reservationExpiryService.schedule(reservation);
         
-        // 4. Crear la reserva en la BD - AHORA SOLO PASA EL ID
-        try {
-            Reservation reservation = reservationDataService.createReservation(username, bookId, quantity);
-            
-            // 5. Actualizar el precio del libro en la reserva (para visualización)
-            reservation.getBook().setPrice(book.getPrice());
-            
-            logger.debug("Reservation created successfully with ID: " + reservation.getId());
-            return reservation;
-        } catch (Exception e) {
-            // Si falla la creación de la reserva, restaurar el stock
-            logger.error("Failed to create reservation, restoring stock", e);
-            bookManagerService.increaseStock(bookId, quantity);
-            throw e;
-        }
+        // Precio del libro en la reserva (para visualización), sin ir a la BD
+        bookManagerService.priceBooks(List.of(reservation.getBook()));
+        
+        logger.debug("Reservation created successfully with ID: " + reservation.getId());
+        return reservation;
     }
     
     @Override
@@ -63,17 +64,14 @@ public class ReservationManager implements ReservationManagerService {
         logger.debug("Getting reservations for user: " + username);
         List<Reservation> reservations = reservationDataService.getReservationsByUsername(username);
         
-        // Calcular precios de los libros (como hace BookManager)
+        // Los libros ya vienen cargados con la reserva: solo falta el precio
+        List<Book> books = new ArrayList<>(reservations.size());
         for (Reservation reservation : reservations) {
-            Book book = reservation.getBook();
-            if (book != null) {
-                // Recalcular precio con IVA usando BookManagerService
-                Book bookWithPrice = bookManagerService.getBookById(book.getId());
-                if (bookWithPrice != null) {
-                    book.setPrice(bookWithPrice.getPrice());
-                }
+            if (reservation.getBook() != null) {
+                books.add(reservation.getBook());
             }
         }
+        bookManagerService.priceBooks(books);
         
         return reservations;
     }
@@ -81,12 +79,13 @@ public class ReservationManager implements ReservationManagerService {
     @Override
     public Reservation getReservationByUserAndBook(String username, int bookId) throws Exception {
         logger.debug("Getting reservation for user: " + username + ", book: " + bookId);
-        // Usar getReservations que ya calcula los precios
-        List<Reservation> reservations = getReservations(username);
-        return reservations.stream()
-            .filter(r -> r.getBook().getId() == bookId)
-            .findFirst()
-            .orElse(null);
+        Reservation reservation = reservationDataService.getReservationByUserAndBook(username, bookId);
+        
+        if (reservation != null) {
+            // El libro ya viene cargado con la reserva: solo falta el precio
+            bookManagerService.priceBooks(List.of(reservation.getBook()));
+        }
+        return reservation;
     }
     
     @Override
@@ -101,8 +100,13 @@ public class ReservationManager implements ReservationManagerService {
         }
         
         // 2. Eliminar la reserva (ya se pagó el 5%, ahora se paga el resto)
-        //    El stock ya está reducido desde que se creó la reserva
-        reservationDataService.deleteReservation(reservationId);
+        //    El stock ya está reducido desde que se creó la reserva. Si ya no
+        //    estaba (la ha cancelado o caducado otra peticion, que ha devuelto
+        //    su stock), no hay compra
+        if (reservationDataService.deleteReservation(reservationId) == 0) {
+            throw new Exception("reservation.notFound");
+        }
+        reservationVersions.changed(reservation.getUsername());
         
         logger.debug("Reservation purchased and deleted. Stock remains reduced.");
         return true;
@@ -119,13 +123,11 @@ public class ReservationManager implements ReservationManagerService {
             throw new Exception("reservation.notFound");
         }
         
-        // 2. Restaurar el stock antes de eliminar
-        Book book = reservation.getBook();
-        bookManagerService.increaseStock(book.getId(), reservation.getQuantity());
-        logger.debug("Stock restored for book " + book.getId());
-        
-        // 3. Eliminar la reserva
-        reservationDataService.deleteReservation(reservationId);
+        // 2. Eliminar la reserva y restaurar su stock en una sola transaccion: solo
+        //    si la borra esta peticion (no la caducidad ni otra cancelacion)
+        if (cancelReservations(reservation.getUsername(), List.of(reservationId)) == 0) {
+            throw new Exception("reservation.notFound");
+        }
         
         logger.debug("Reservation cancelled and deleted");
         return true;
@@ -151,34 +153,22 @@ public class ReservationManager implements ReservationManagerService {
     public Reservation incrementReservationQuantity(int reservationId, int additionalQuantity) throws Exception {
         logger.debug("Incrementing reservation quantity: " + reservationId + " by " + additionalQuantity);
         
-        // 1. Obtener la reserva
-        Reservation reservation = reservationDataService.getReservationById(reservationId);
-        
+        // Stock y cantidad en una sola transaccion
+        Reservation reservation = reservationDataService.addToReservation(reservationId, additionalQuantity);
         if (reservation == null) {
-            throw new Exception("reservation.notFound");
-        }
-        
-        int bookId = reservation.getBook().getId();
-        
-        // 2. Verificar stock disponible para la cantidad adicional
-        if (!bookManagerService.checkStockAvailability(bookId, additionalQuantity)) {
+            // Solo al fallar: distinguir reserva inexistente de falta de stock
+            if (reservationDataService.getReservationById(reservationId) == null) {
+                throw new Exception("reservation.notFound");
+            }
             throw new Exception("reservation.notEnoughStock");
         }
+        reservationVersions.changed(reservation.getUsername());
         
-        // 3. Reducir el stock por la cantidad adicional
-        boolean stockReduced = bookManagerService.reduceStock(bookId, additionalQuantity);
-        if (!stockReduced) {
-            throw new Exception("reservation.stockReductionFailed");
-        }
+        // La ampliacion reinicia el plazo; la entrada anterior de la rueda no borra nada
+        // al vencer porque el barrido compara con la fecha de la BD
+        reservationExpiryService.schedule(reservation);
         
-        // 4. Actualizar la cantidad en la reserva
-        int newQuantity = reservation.getQuantity() + additionalQuantity;
-        reservation.setQuantity(newQuantity);
-        
-        // 5. Guardar en BD
-        reservation = reservationDataService.updateReservation(reservation);
-        
-        logger.debug("Reservation quantity updated successfully. New quantity: " + newQuantity);
+        logger.debug("Reservation quantity updated successfully. New quantity: " + reservation.getQuantity());
         return reservation;
     }
     
@@ -186,15 +176,117 @@ public class ReservationManager implements ReservationManagerService {
     public boolean processReservationsInCart(String username, Cart cart) throws Exception {
         logger.debug("Processing reservations in cart for user: " + username);
         
-        for (CartItem item : cart.getItems()) {
-            if (item.isReserved()) {
-                Reservation res = getReservationByUserAndBook(username, item.getBookId());
-                if (res != null) {
-                    purchaseReservation(res.getId());
+        // Reservas buscadas y borradas en una transaccion; false (sin borrar ninguna) si
+        // alguna linea reservada ya no tiene reserva: caducada o cancelada entre tanto
+        Set<Integer> reservedBookIds = reservedBookIds(cart);
+        if (!reservationDataService.purchaseCart(username, Map.of(), reservedBookIds)) {
+            return false;
+        }
+        if (!reservedBookIds.isEmpty()) {
+            reservationVersions.changed(username);
+        }
+        return true;
+    }
+    
+    @Override
+    public boolean purchaseCart(String username, Cart cart) throws Exception {
+        return purchaseCarts(Map.of(username, List.of(cart)));
+    }
+    
+    @Override
+    public boolean purchaseCarts(Map<String, List<Cart>> carts) throws Exception {
+        logger.debug("Purchasing carts of users: " + carts.keySet());
+        
+        // Lineas NO reservadas agrupadas por libro (las reservas ya redujeron stock) y
+        // libros reservados de cada usuario
+        Map<Integer, Integer> quantities = new TreeMap<>();
+        Map<String, List<Integer>> reservedBookIds = new HashMap<>();
+        for (Map.Entry<String, List<Cart>> entry : carts.entrySet()) {
+            List<Integer> reserved = new ArrayList<>();
+            for (Cart cart : entry.getValue()) {
+                for (CartItem item : cart.getItems()) {
+                    if (!item.isReserved()) {
+                        quantities.merge(item.getBookId(), item.getQuantity(), Integer::sum);
+                    }
                 }
+                reserved.addAll(reservedBookIds(cart));
             }
+            reservedBookIds.put(entry.getKey(), reserved);
         }
         
+        if (!reservationDataService.purchaseCarts(quantities, reservedBookIds)) {
+            return false;
+        }
+        reservedBookIds.forEach((username, reserved) -> {
+            if (!reserved.isEmpty()) {
+                reservationVersions.changed(username);
+            }
+        });
         return true;
     }
+    
+    @Override
+    public int cancelReservationsInCart(String username, Cart cart) throws Exception {
+        logger.debug("Cancelling reservations in cart for user: " + username);
+        
+        return cancelReservations(username, reservationIdsInCart(username, cart));
+    }
+    
+    @Override
+    public int purchaseReservations(String username, Collection<Integer> reservationIds) throws Exception {
+        // El stock ya está reducido desde que se crearon las reservas
+        int purchased = reservationDataService.deleteReservations(username, reservationIds);
+        if (purchased > 0) {
+            reservationVersions.changed(username);
+        }
+        logger.debug("Purchased " + purchased + " of " + reservationIds.size() + " reservations");
+        return purchased;
+    }
+    
+    @Override
+    public int cancelReservations(String username, Collection<Integer> reservationIds) throws Exception {
+        int cancelled = reservationDataService.cancelReservations(username, reservationIds);
+        if (cancelled > 0) {
+            reservationVersions.changed(username);
+        }
+        logger.debug("Cancelled " + cancelled + " of " + reservationIds.size() + " reservations");
+        return cancelled;
+    }
+    
+    // Libros de las lineas reservadas del carrito
+    private static Set<Integer> reservedBookIds(Cart cart) {
+        Set<Integer> bookIds = new HashSet<>();
+        for (CartItem item : cart.getItems()) {
+            if (item.isReserved()) {
+                bookIds.add(item.getBookId());
+            }
+        }
+        return bookIds;
+    }
+    
+    // Ids de las reservas del usuario de los libros reservados del carrito, con una sola consulta
+    private List<Integer> reservationIdsInCart(String username, Cart cart) throws Exception {
+        Set<Integer> bookIds = reservedBookIds(cart);
+        List<Integer> ids = new ArrayList<>(bookIds.size());
+        if (bookIds.isEmpty()) {
+            return ids;
+        }
+        for (Reservation reservation : reservationDataService.getReservationsByUsername(username)) {
+            if (bookIds.contains(reservation.getBook().getId())) {
+                ids.add(reservation.getId());
+            }
+        }
+        return ids;
+    }
+    
+    @Override
+    public long getReservationVersion(String username) {
+        return reservationVersions.get(username);
+    }
+    
+    @Override
+    public long exportReservations(RowHandler<Reservation> handler) throws Exception {
+        logger.debug("Exporting all reservations");
+        return reservationDataService.streamReservations(handler);
+    }
 }
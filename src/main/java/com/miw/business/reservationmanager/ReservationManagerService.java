@@ -1,8 +1,11 @@
 package com.miw.business.reservationmanager;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import com.miw.model.Reservation;
 import com.miw.model.Cart;
+import com.miw.persistence.RowHandler;
 
 public interface ReservationManagerService {
     Reservation createReservation(String username, int bookId, int quantity) throws Exception;
@@ -13,4 +16,20 @@ public interface ReservationManagerService {
     boolean cancelReservationByUserAndBook(String username, int bookId) throws Exception;
     Reservation incrementReservationQuantity(int reservationId, int additionalQuantity) throws Exception;
     boolean processReservationsInCart(String username, Cart cart) throws Exception;
+    // Checkout del carrito entero (stock de las compras normales y reservas) en una sola
+    // transaccion; false, sin ningun cambio, si falta stock
+    boolean purchaseCart(String username, Cart cart) throws Exception;
+    // Igual para varios carritos (usuario -> sus carritos) en una sola transaccion: o se
+    // compran todos o ninguno
+    boolean purchaseCarts(Map<String, List<Cart>> carts) throws Exception;
+    // Cancela (devolviendo el stock) las reservas del usuario que estan en el carrito
+    int cancelReservationsInCart(String username, Cart cart) throws Exception;
+    // Operaciones en bloque: una transaccion y un numero fijo de sentencias; devuelven
+    // cuantas reservas se han comprado o cancelado
+    int purchaseReservations(String username, Collection<Integer> reservationIds) throws Exception;
+    int cancelReservations(String username, Collection<Integer> reservationIds) throws Exception;
+    // Version de las reservas del usuario: cambia con cada alta, modificacion o baja
+    long getReservationVersion(String username);
+    // Recorre todas las reservas (de todos los usuarios) sin cargarlas en memoria
+    long exportReservations(RowHandler<Reservation> handler) throws Exception;
 }
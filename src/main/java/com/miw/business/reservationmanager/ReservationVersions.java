@@ -0,0 +1,46 @@
+package com.miw.business.reservationmanager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version de las reservas de cada usuario: cambia cada vez que se crea,
+ * modifica, compra, cancela o caduca una de sus reservas, despues de confirmar
+ * el cambio en BD. El carrito guarda la version con la que se sincronizo por
+ * ultima vez (ver CartController.viewCart); si no ha cambiado, no hace falta
+ * volver a leer las reservas.
+ *
+ * Las versiones estan en memoria y empiezan en un valor aleatorio en cada
+ * arranque, de modo que un carrito guardado (CartStore) en una ejecucion
+ * anterior no coincide y se vuelve a sincronizar. Solo ven los cambios hechos
+ * en este servidor.
+ */
+public class ReservationVersions {
+
+	// Cart empieza en 0 (nunca sincronizado): el origen no puede ser 0
+	private final long epoch = ThreadLocalRandom.current().nextLong() | 1;
+
+	private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+	private final AtomicLong changes = new AtomicLong();
+
+	public long get(String username) {
+		AtomicLong version = versions.get(username);
+		return version == null ? epoch : version.get();
+	}
+
+	/**
+	 * Las reservas del usuario han cambiado (llamar despues del commit).
+	 */
+	public void changed(String username) {
+		versions.computeIfAbsent(username, u -> new AtomicLong(epoch)).incrementAndGet();
+		changes.incrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return "ReservationVersions: users=" + versions.size() + ", changes=" + changes.get();
+	}
+}
@@ -0,0 +1,102 @@
+package com.miw.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias con cubetas en potencias de 2 (microsegundos).
+ * Es seguro entre hilos y no reserva memoria al registrar valores.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		recordMicros(nanos / 1000);
+	}
+
+	public void recordMicros(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		counts.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+		maxMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sumMicros.get() / n;
+	}
+
+	/**
+	 * Devuelve el limite superior de la cubeta que contiene el percentil
+	 * indicado (0-100).
+	 */
+	public long getPercentileMicros(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sumMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	private static long upperBound(int bucket) {
+		return bucket == 0 ? 0 : (1L << bucket) - 1;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("count=").append(getCount())
+			.append(", mean=").append(String.format("%.1f", getMeanMicros())).append("us")
+			.append(", p50=").append(getPercentileMicros(50)).append("us")
+			.append(", p99=").append(getPercentileMicros(99)).append("us")
+			.append(", max=").append(getMaxMicros()).append("us")
+			.append(", buckets=[");
+		boolean first = true;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			if (c > 0) {
+				if (!first) {
+					sb.append(", ");
+				}
+				sb.append("<=").append(upperBound(i)).append("us:").append(c);
+				first = false;
+			}
+		}
+		return sb.append("]").toString();
+	}
+}
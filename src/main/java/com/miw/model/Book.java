@@ -2,16 +2,27 @@
 
 package com.miw.model;
 
+import jakarta.persistence.Cacheable;
 import jakarta.persistence.CascadeType;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.FetchType;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.Table;
 import jakarta.persistence.Transient;
+import jakarta.persistence.Version;
+
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 @Entity
+@Table(indexes = @Index(name = "IDX_BOOK_TITLE_ID", columnList = "title, id"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Book {
 	
 	
@@ -25,6 +36,9 @@ public class Book {
 	private VAT vat;
 	private double basePrice;
 	private int stock;
+	@Version
+	@Column(nullable = false, columnDefinition = "integer default 0")
+	private int version;
 	
 
 	@Transient
@@ -116,6 +130,14 @@ public class Book {
 		this.stock = stock;
 	}
 
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
 	@Override
 	public String toString() {
 		return "Book [id=" + id + ", title=" + title + ", description=" + description + ", author=" + author
@@ -0,0 +1,51 @@
+package com.miw.model;
+
+import java.util.List;
+
+/**
+ * Una pagina del catalogo. La siguiente pagina empieza despues de la ultima
+ * fila de esta (paginacion por keyset), no en un offset.
+ */
+public class BookPage {
+
+	private List<Book> books;
+	private BookSort sort;
+	private boolean hasNext;
+
+	public BookPage(List<Book> books, BookSort sort, boolean hasNext) {
+		super();
+		this.books = books;
+		this.sort = sort;
+		this.hasNext = hasNext;
+	}
+
+	public List<Book> getBooks() {
+		return books;
+	}
+
+	public BookSort getSort() {
+		return sort;
+	}
+
+	public boolean isHasNext() {
+		return hasNext;
+	}
+
+	public Book getLast() {
+		return books.isEmpty() ? null : books.get(books.size() - 1);
+	}
+
+	// Cursor de la siguiente pagina (para los enlaces del JSP)
+	public Integer getNextAfterId() {
+		return hasNext ? getLast().getId() : null;
+	}
+
+	public String getNextAfterTitle() {
+		return hasNext ? getLast().getTitle() : null;
+	}
+
+	@Override
+	public String toString() {
+		return "BookPage [books=" + books.size() + ", sort=" + sort + ", hasNext=" + hasNext + "]";
+	}
+}
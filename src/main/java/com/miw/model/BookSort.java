@@ -0,0 +1,13 @@
+package com.miw.model;
+
+/**
+ * Orden del catalogo paginado. Cada orden usa una clave unica (el id desempata)
+ * para poder paginar por keyset.
+ */
+public enum BookSort {
+	ID, TITLE;
+
+	public static BookSort fromParameter(String value) {
+		return "title".equalsIgnoreCase(value) ? TITLE : ID;
+	}
+}
@@ -1,84 +1,567 @@
 package com.miw.model;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Carrito de la sesion.
+ *
+ * Las lineas se guardan en orden de llegada (para mostrarlas) y ademas en un
+ * indice hash de claves int (bookId, reservada), de modo que buscar, anadir o
+ * quitar una linea no recorre el carrito: cada linea sabe su posicion y al
+ * quitarla deja un hueco, que se compacta (sin cambiar el orden) al pedir
+ * getItems(), cuando no cabe una nueva o cuando hay mas huecos que lineas. El
+ * total y el numero de unidades se mantienen al vuelo: las lineas avisan al
+ * carrito cuando cambia su cantidad.
+ *
+ * Las lineas solo se modifican con los metodos del carrito o con
+ * CartItem.setQuantity; getItems() es de solo lectura y, como las listas de
+ * java.util, falla con ConcurrentModificationException si se anaden o quitan
+ * lineas mientras se recorre.
+ *
+ * Al serializar (replicacion o persistencia de la sesion) solo se escriben las
+ * tuplas (bookId, cantidad, reserva, precio en centimos) empaquetadas en un
+ * int[]; los Book se vuelven a cargar del catalogo al pintar el carrito (ver
+ * getMissingBookIds y attachBooks). En memoria las lineas siguen siendo
+ * CartItem, que es lo que usan las vistas y los servicios; el int[] es solo el
+ * formato guardado (ver CartSerializationBenchmark en los tests).
+ *
+ * reservationVersion es la version de las reservas del usuario con la que se
+ * sincronizo el carrito por ultima vez (0 = nunca).
+ */
+public class Cart implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    // Formato binario: version, numero de lineas, reservationVersion (desde la 2)
+    // y FIELDS enteros por linea
+    private static final byte FORMAT_VERSION = 2;
+    private static final int FIELDS = 4;
+    private static final int FLAG_RESERVED = 1;
+
+    // Lineas en orden de llegada; las quitadas dejan null hasta compact()
+    private CartItem[] lines = new CartItem[8];
+    private int end;
+    private int size;
+
+    // Vista de solo lectura de las lineas, sin huecos
+    private final Lines items = new Lines();
+
+    // Indice (bookId, reservada) -> linea, con direccionamiento abierto; slots[i] == null es hueco
+    private int[] keys = new int[16];
+    private CartItem[] slots = new CartItem[16];
+
+    private double total;
+    private int totalItems;
+    private long nextSequence;
+
+    private long reservationVersion;
 
-public class Cart {
-    private List<CartItem> items;
-    
     public Cart() {
-        this.items = new ArrayList<>();
+        super();
     }
-    
+
     public void addItem(Book book, int quantity) {
-        // Buscar si el libro ya está en el carrito COMO COMPRA NORMAL (no reserva)
-        for (CartItem item : items) {
-            if (item.getBook().getId() == book.getId() && !item.isReserved()) {
-                // Si ya está como compra normal, incrementar cantidad
-                item.setQuantity(item.getQuantity() + quantity);
-                return;
-            }
+        // Si el libro ya está en el carrito COMO COMPRA NORMAL (no reserva), incrementar cantidad
+        CartItem item = getItem(book.getId(), false);
+        if (item != null) {
+            item.setQuantity(item.getQuantity() + quantity);
+            return;
         }
-        
+
         // Si no está, o solo está como reserva, crear nuevo CartItem (compra normal)
-        items.add(new CartItem(book, quantity, false));
+        add(new CartItem(book, quantity, false));
     }
-    
+
+    /**
+     * Linea de reserva de un libro con la cantidad reservada en BD: la crea o
+     * actualiza su cantidad.
+     */
+    public void putReservedItem(Book book, int quantity) {
+        CartItem item = getItem(book.getId(), true);
+        if (item != null) {
+            item.setQuantity(quantity);
+        } else {
+            add(new CartItem(book, quantity, true));
+        }
+    }
+
+    /**
+     * Linea del libro como reserva o como compra normal; null si no esta.
+     */
+    public CartItem getItem(int bookId, boolean reserved) {
+        int slot = find(key(bookId, reserved));
+        return slot < 0 ? null : slots[slot];
+    }
+
+    /**
+     * Primera linea del libro (en orden de llegada), sea reserva o compra normal.
+     */
+    public CartItem findItem(int bookId) {
+        CartItem normal = getItem(bookId, false);
+        CartItem reserved = getItem(bookId, true);
+        if (normal == null || reserved == null) {
+            return normal != null ? normal : reserved;
+        }
+        return normal.sequence < reserved.sequence ? normal : reserved;
+    }
+
     public void removeItem(int bookId) {
-        items.removeIf(item -> item.getBookId() == bookId);
+        remove(getItem(bookId, false));
+        remove(getItem(bookId, true));
     }
-    
+
     public void removeReservedItem(int bookId) {
-        items.removeIf(item -> item.getBookId() == bookId && item.isReserved());
+        remove(getItem(bookId, true));
     }
-    
+
     public void removeNonReservedItem(int bookId) {
-        items.removeIf(item -> item.getBookId() == bookId && !item.isReserved());
+        remove(getItem(bookId, false));
     }
-    
-    public void updateQuantity(int bookId, int newQuantity) {
-        for (CartItem item : items) {
-            if (item.getBook().getId() == bookId) {
-                if (newQuantity <= 0) {
-                    removeItem(bookId);
-                } else {
-                    item.setQuantity(newQuantity);
-                }
-                break;
+
+    /**
+     * Quita todas las lineas que cumplen la condicion en una sola pasada.
+     */
+    public void removeItemsIf(Predicate<CartItem> filter) {
+        int kept = 0;
+        for (int i = 0; i < end; i++) {
+            CartItem item = lines[i];
+            if (item == null) {
+                continue;
+            }
+            if (filter.test(item)) {
+                unindex(item);
+            } else {
+                item.position = kept;
+                lines[kept++] = item;
+            }
+        }
+        Arrays.fill(lines, kept, end, null);
+        if (kept < size) {
+            items.changed();
+        }
+        end = kept;
+        size = kept;
+        if (size == 0) {
+            resetTotals();
+        }
+    }
+
+    /**
+     * true si cada linea de other esta en este carrito (mismo libro y tipo) con
+     * al menos sus unidades.
+     */
+    public boolean containsItems(Cart other) {
+        for (CartItem line : other.getItems()) {
+            CartItem item = getItem(line.getBookId(), line.isReserved());
+            if (item == null || item.getQuantity() < line.getQuantity()) {
+                return false;
             }
         }
+        return true;
     }
-    
+
+    /**
+     * Quita las lineas de other (p. ej. las ya compradas): las reservadas
+     * enteras y de las normales solo sus unidades.
+     */
+    public void removeItems(Cart other) {
+        for (CartItem line : other.getItems()) {
+            CartItem item = getItem(line.getBookId(), line.isReserved());
+            if (item == null) {
+                continue;
+            }
+            int left = item.getQuantity() - line.getQuantity();
+            if (line.isReserved() || left <= 0) {
+                remove(item);
+            } else {
+                item.setQuantity(left);
+            }
+        }
+    }
+
+    public void updateQuantity(int bookId, int newQuantity) {
+        CartItem item = findItem(bookId);
+        if (item == null) {
+            return;
+        }
+        if (newQuantity <= 0) {
+            removeItem(bookId);
+        } else {
+            item.setQuantity(newQuantity);
+        }
+    }
+
     public double getTotal() {
-        return items.stream()
-            .mapToDouble(CartItem::getSubtotal)
-            .sum();
+        return total;
     }
-    
+
     public List<CartItem> getItems() {
+        compact();
         return items;
     }
-    
-    public void setItems(List<CartItem> items) {
-        this.items = items;
+
+    public long getReservationVersion() {
+        return reservationVersion;
+    }
+
+    public void setReservationVersion(long reservationVersion) {
+        this.reservationVersion = reservationVersion;
+    }
+
+    public void setItems(List<CartItem> newItems) {
+        clear();
+        for (CartItem item : newItems) {
+            CartItem line = getItem(item.getBookId(), item.isReserved());
+            if (line == null) {
+                addCopyOf(item);
+            } else if (item.isReserved()) {
+                line.setQuantity(item.getQuantity());
+            } else {
+                line.setQuantity(line.getQuantity() + item.getQuantity());
+            }
+        }
+    }
+
+    /**
+     * Copia independiente del carrito: lineas nuevas con los mismos libros.
+     */
+    public Cart copy() {
+        Cart copy = new Cart();
+        for (CartItem item : getItems()) {
+            copy.addCopyOf(item);
+        }
+        copy.reservationVersion = reservationVersion;
+        return copy;
+    }
+
+    /**
+     * Ids de los libros cuyas lineas no tienen los datos del libro cargados.
+     */
+    public List<Integer> getMissingBookIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (CartItem item : getItems()) {
+            if (item.getBook() == null) {
+                ids.add(item.getBookId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Pone los datos del libro en sus lineas (reserva y compra normal).
+     */
+    public void attachBooks(Collection<Book> books) {
+        for (Book book : books) {
+            CartItem normal = getItem(book.getId(), false);
+            if (normal != null) {
+                normal.setBook(book);
+            }
+            CartItem reserved = getItem(book.getId(), true);
+            if (reserved != null) {
+                reserved.setBook(book);
+            }
+        }
+    }
+
+    /**
+     * Lineas empaquetadas: FIELDS enteros por linea.
+     */
+    public int[] pack() {
+        int[] packed = new int[items.size() * FIELDS];
+        int i = 0;
+        for (CartItem item : getItems()) {
+            packed[i++] = item.getBookId();
+            packed[i++] = item.getQuantity();
+            packed[i++] = item.isReserved() ? FLAG_RESERVED : 0;
+            packed[i++] = Math.toIntExact(item.getPriceCents());
+        }
+        return packed;
+    }
+
+    /**
+     * Carrito a partir de las lineas empaquetadas por pack(), sin datos de libros.
+     */
+    public static Cart unpack(int[] packed) {
+        Cart cart = new Cart();
+        cart.load(packed);
+        return cart;
+    }
+
+    public byte[] toBytes() {
+        int[] packed = pack();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 8 + packed.length * 4);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(packed.length / FIELDS);
+        buffer.putLong(reservationVersion);
+        buffer.asIntBuffer().put(packed);
+        return buffer.array();
     }
-    
+
+    public static Cart fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte version = checkVersion(buffer.get());
+        int[] packed = new int[buffer.getInt() * FIELDS];
+        long reservationVersion = version >= 2 ? buffer.getLong() : 0;
+        buffer.asIntBuffer().get(packed);
+        Cart cart = unpack(packed);
+        cart.reservationVersion = reservationVersion;
+        return cart;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int[] packed = pack();
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(packed.length / FIELDS);
+        out.writeLong(reservationVersion);
+        for (int value : packed) {
+            out.writeInt(value);
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        byte version = checkVersion(in.readByte());
+        int[] packed = new int[in.readInt() * FIELDS];
+        long storedVersion = version >= 2 ? in.readLong() : 0;
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = in.readInt();
+        }
+        load(packed);
+        reservationVersion = storedVersion;
+    }
+
+    private static byte checkVersion(byte version) {
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown cart format version " + version);
+        }
+        return version;
+    }
+
+    private void load(int[] packed) {
+        clear();
+        for (int i = 0; i < packed.length; i += FIELDS) {
+            add(new CartItem(packed[i], packed[i + 1], (packed[i + 2] & FLAG_RESERVED) != 0, packed[i + 3]));
+        }
+    }
+
     public void clear() {
-        items.clear();
+        // Vaciar no cambia las reservas: la version sincronizada se mantiene
+        for (int i = 0; i < end; i++) {
+            if (lines[i] != null) {
+                lines[i].cart = null;
+            }
+        }
+        if (size > 0) {
+            items.changed();
+        }
+        lines = new CartItem[8];
+        end = 0;
+        size = 0;
+        keys = new int[16];
+        slots = new CartItem[16];
+        resetTotals();
     }
-    
+
     public int getTotalItems() {
-        return items.stream()
-            .mapToInt(CartItem::getQuantity)
-            .sum();
+        return totalItems;
     }
-    
+
     public boolean isEmpty() {
-        return items.isEmpty();
+        return size == 0;
+    }
+
+    // Llamado por CartItem.setQuantity
+    void quantityChanged(double oldSubtotal, int oldQuantity, CartItem item) {
+        total += item.getSubtotal() - oldSubtotal;
+        totalItems += item.getQuantity() - oldQuantity;
+    }
+
+    private void add(CartItem item) {
+        if (item.cart != null) {
+            throw new IllegalStateException("Cart item already belongs to a cart");
+        }
+        item.cart = this;
+        item.sequence = nextSequence++;
+        index(item);
+        if (end == lines.length) {
+            compact();
+            if (end == lines.length) {
+                lines = Arrays.copyOf(lines, lines.length << 1);
+            }
+        }
+        item.position = end;
+        lines[end++] = item;
+        size++;
+        items.changed();
+        total += item.getSubtotal();
+        totalItems += item.getQuantity();
+    }
+
+    // Misma linea (con el precio fijado) y, si lo tiene, el mismo libro
+    private void addCopyOf(CartItem item) {
+        CartItem line = new CartItem(item.getBookId(), item.getQuantity(), item.isReserved(), item.getPriceCents());
+        add(line);
+        if (item.getBook() != null) {
+            line.setBook(item.getBook());
+        }
+    }
+
+    private void remove(CartItem item) {
+        if (item == null) {
+            return;
+        }
+        lines[item.position] = null;
+        size--;
+        items.changed();
+        unindex(item);
+        if (size == 0) {
+            end = 0;
+            resetTotals();
+        } else if (end - size > size) {
+            // Con mas huecos que lineas: el recorrido se reparte entre los huecos
+            compact();
+        }
+    }
+
+    // Quita los huecos de las lineas quitadas sin cambiar el orden
+    private void compact() {
+        if (end == size) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < end; i++) {
+            CartItem item = lines[i];
+            if (item != null) {
+                item.position = kept;
+                lines[kept++] = item;
+            }
+        }
+        Arrays.fill(lines, kept, end, null);
+        end = kept;
+    }
+
+    // Sin arrastrar el error de redondeo de las sumas y restas
+    private void resetTotals() {
+        total = 0;
+        totalItems = 0;
+    }
+
+    private void index(CartItem item) {
+        if (((size + 1) << 1) > slots.length) {
+            resize(slots.length << 1);
+        }
+        int k = key(item.getBookId(), item.isReserved());
+        int mask = slots.length - 1;
+        int i = mix(k) & mask;
+        while (slots[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = k;
+        slots[i] = item;
+    }
+
+    private void unindex(CartItem item) {
+        int slot = find(key(item.getBookId(), item.isReserved()));
+        if (slot < 0 || slots[slot] != item) {
+            return;
+        }
+        total -= item.getSubtotal();
+        totalItems -= item.getQuantity();
+        item.cart = null;
+
+        // Borrado con desplazamiento hacia atras: sin lapidas, las busquedas siguen
+        // parando en el primer hueco
+        int mask = slots.length - 1;
+        int hole = slot;
+        int i = (slot + 1) & mask;
+        while (slots[i] != null) {
+            int home = mix(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                slots[hole] = slots[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[hole] = null;
+    }
+
+    private int find(int k) {
+        int mask = slots.length - 1;
+        int i = mix(k) & mask;
+        while (slots[i] != null) {
+            if (keys[i] == k) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        keys = new int[capacity];
+        slots = new CartItem[capacity];
+        int mask = capacity - 1;
+        for (CartItem item : getItems()) {
+            int k = key(item.getBookId(), item.isReserved());
+            int i = mix(k) & mask;
+            while (slots[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = k;
+            slots[i] = item;
+        }
+    }
+
+    private static int key(int bookId, boolean reserved) {
+        return (bookId << 1) | (reserved ? 1 : 0);
+    }
+
+    private static int mix(int k) {
+        int h = k * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // get() no compacta: si quedan huecos (la vista se guardo antes de quitar una
+    // linea) cuenta las lineas desde el principio
+    private final class Lines extends AbstractList<CartItem> {
+        @Override
+        public CartItem get(int index) {
+            Objects.checkIndex(index, size);
+            if (end == size) {
+                return lines[index];
+            }
+            for (int i = 0; ; i++) {
+                if (lines[i] != null && index-- == 0) {
+                    return lines[i];
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // Anadir o quitar lineas invalida los iteradores abiertos
+        void changed() {
+            modCount++;
+        }
     }
-    
+
     @Override
     public String toString() {
-        return "Cart [items=" + items + "]";
+        return "Cart [items=" + getItems() + "]";
     }
 }
@@ -1,26 +1,45 @@
 package com.miw.model;
 
+/**
+ * Linea del carrito. Lo que se guarda en sesion son solo cuatro numeros
+ * (libro, cantidad, reserva y precio unitario en centimos, fijado al anadirla);
+ * el Book es solo para mostrar la linea, no se serializa con el carrito y se
+ * vuelve a cargar del catalogo al pintarlo.
+ */
 public class CartItem {
-    private Book book;
+    private int bookId;
     private int quantity;
     private boolean isReserved; // Solo necesitamos esta marca
+    private long priceCents;
+    
+    // Datos del libro para mostrar; null hasta que se cargan del catalogo
+    private Book book;
+    
+    // Carrito al que pertenece (para mantener sus totales), orden de llegada y
+    // posicion en sus lineas
+    Cart cart;
+    long sequence;
+    int position;
     
     public CartItem() {
         super();
     }
     
     public CartItem(Book book, int quantity) {
-        super();
-        this.book = book;
-        this.quantity = quantity;
-        this.isReserved = false;
+        this(book, quantity, false);
     }
     
     public CartItem(Book book, int quantity, boolean isReserved) {
-        super();
+        this(book.getId(), quantity, isReserved, Math.round(book.getPrice() * 100));
         this.book = book;
+    }
+    
+    CartItem(int bookId, int quantity, boolean isReserved, long priceCents) {
+        super();
+        this.bookId = bookId;
         this.quantity = quantity;
         this.isReserved = isReserved;
+        this.priceCents = priceCents;
     }
     
     public Book getBook() {
@@ -28,15 +47,33 @@ public class CartItem {
     }
     
     public void setBook(Book book) {
+        if (cart != null && book.getId() != bookId) {
+            throw new IllegalStateException("Cannot change the book of an item in a cart");
+        }
+        if (cart == null) {
+            this.bookId = book.getId();
+            this.priceCents = Math.round(book.getPrice() * 100);
+        }
         this.book = book;
     }
     
+    public long getPriceCents() {
+        return priceCents;
+    }
+    
     public int getQuantity() {
         return quantity;
     }
     
     public void setQuantity(int quantity) {
+        if (cart == null) {
+            this.quantity = quantity;
+            return;
+        }
+        double oldSubtotal = getSubtotal();
+        int oldQuantity = this.quantity;
         this.quantity = quantity;
+        cart.quantityChanged(oldSubtotal, oldQuantity, this);
     }
     
     public boolean isReserved() {
@@ -44,44 +81,48 @@ public class CartItem {
     }
     
     public void setReserved(boolean reserved) {
+        if (cart != null) {
+            throw new IllegalStateException("Cannot change the type of an item in a cart");
+        }
         isReserved = reserved;
     }
     
     // Subtotal considerando si es reserva (95% restante) o compra normal (100%)
     public double getSubtotal() {
         if (isReserved) {
-            return book.getPrice() * quantity * 0.95; // 95% restante por pagar en reservas
+            return getUnitPrice() * quantity * 0.95; // 95% restante por pagar en reservas
         }
-        return book.getPrice() * quantity;
+        return getUnitPrice() * quantity;
     }
     
     // Calcula cuánto se pagó inicialmente (si es reserva)
     public double getPaidAmount() {
         if (isReserved) {
-            return book.getPrice() * quantity * 0.05; // 5% ya pagado
+            return getUnitPrice() * quantity * 0.05; // 5% ya pagado
         }
         return 0;
     }
     
     // Métodos delegados para facilitar acceso en JSP
     public String getTitle() {
-        return book.getTitle();
+        return book == null ? null : book.getTitle();
     }
     
     public int getBookId() {
-        return book.getId();
+        return bookId;
     }
     
     public String getAuthor() {
-        return book.getAuthor();
+        return book == null ? null : book.getAuthor();
     }
     
     public double getUnitPrice() {
-        return book.getPrice();
+        return priceCents / 100.0;
     }
     
     @Override
     public String toString() {
-        return "CartItem [book=" + book + ", quantity=" + quantity + ", isReserved=" + isReserved + "]";
+        return "CartItem [bookId=" + bookId + ", quantity=" + quantity + ", isReserved=" + isReserved
+            + ", priceCents=" + priceCents + "]";
     }
 }
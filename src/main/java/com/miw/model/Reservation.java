@@ -4,6 +4,8 @@ import jakarta.persistence.*;
 import java.time.LocalDateTime;
 
 @Entity
+// Busqueda de la reserva de un usuario para un libro concreto
+@Table(indexes = @Index(name = "IDX_RESERVATION_USER_BOOK", columnList = "username, book_id"))
 public class Reservation {
     
     @Id 
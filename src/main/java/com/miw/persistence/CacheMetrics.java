@@ -0,0 +1,101 @@
+package com.miw.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jakarta.persistence.EntityManagerFactory;
+
+import org.apache.logging.log4j.*;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+
+import com.miw.model.Book;
+import com.miw.model.VAT;
+
+/**
+ * Estadisticas de las regiones de la cache de segundo nivel (Book y VAT).
+ *
+ * Aciertos, fallos y entradas vienen de las estadisticas de Hibernate; las
+ * expulsiones solo las conoce el proveedor JCache, que las publica por JMX.
+ */
+public class CacheMetrics {
+
+	public static final String BOOK_REGION = Book.class.getName();
+	public static final String VAT_REGION = VAT.class.getName();
+
+	private static final String[] REGIONS = { BOOK_REGION, VAT_REGION };
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	private final Statistics statistics;
+
+	CacheMetrics(EntityManagerFactory emf) {
+		this.statistics = emf == null ? null : emf.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	public long getHits(String region) {
+		CacheRegionStatistics stats = regionStatistics(region);
+		return stats == null ? 0 : stats.getHitCount();
+	}
+
+	public long getMisses(String region) {
+		CacheRegionStatistics stats = regionStatistics(region);
+		return stats == null ? 0 : stats.getMissCount();
+	}
+
+	public long getPuts(String region) {
+		CacheRegionStatistics stats = regionStatistics(region);
+		return stats == null ? 0 : stats.getPutCount();
+	}
+
+	/**
+	 * Entries held by the region, or -1 when the provider does not report it.
+	 */
+	public long getElements(String region) {
+		CacheRegionStatistics stats = regionStatistics(region);
+		return stats == null || stats.getElementCountInMemory() < 0 ? -1 : stats.getElementCountInMemory();
+	}
+
+	public long getEvictions(String region) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Set<ObjectName> names = server.queryNames(
+					new ObjectName("javax.cache:type=CacheStatistics,CacheManager=*,Cache=" + region), null);
+			long evictions = 0;
+			for (ObjectName name : names) {
+				evictions += ((Number) server.getAttribute(name, "CacheEvictions")).longValue();
+			}
+			return evictions;
+		} catch (Exception e) {
+			logger.debug("Cache evictions not available for region " + region, e);
+			return 0;
+		}
+	}
+
+	private CacheRegionStatistics regionStatistics(String region) {
+		return statistics == null ? null : statistics.getDomainDataRegionStatistics(region);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String region : REGIONS) {
+			long hits = getHits(region);
+			long misses = getMisses(region);
+			long lookups = hits + misses;
+			sb.append("Cache [region=").append(region)
+				.append(", hits=").append(hits)
+				.append(", misses=").append(misses)
+				.append(", hitRatio=").append(lookups == 0 ? "n/a" : String.format("%.2f", (double) hits / lookups))
+				.append(", puts=").append(getPuts(region))
+				.append(", elements=").append(getElements(region) < 0 ? "n/a" : String.valueOf(getElements(region)))
+				.append(", evictions=").append(getEvictions(region))
+				.append("]\n");
+		}
+		return sb.toString();
+	}
+}
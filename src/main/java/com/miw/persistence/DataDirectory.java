@@ -0,0 +1,68 @@
+package com.miw.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Directorios locales de la aplicacion (diario de pedidos, fichero de
+ * carritos).
+ *
+ * Cada uno se toma de su propiedad de sistema (amazin.journal.dir,
+ * amazin.cart.dir) o, si no esta, de un subdirectorio de amazin.data.dir (o la
+ * variable de entorno AMAZIN_DATA_DIR). Si no hay ninguna se usa
+ * amazin-data dentro de catalina.base (o del directorio temporal del sistema)
+ * y se avisa en el log: mejor configurarlo, el temporal puede borrarse.
+ *
+ * Una ruta configurada tiene que ser absoluta (una relativa dependeria del
+ * directorio de trabajo del contenedor) y se tiene que poder escribir; si no,
+ * el bean que la usa no arranca.
+ */
+public final class DataDirectory {
+
+	public static final String PROPERTY = "amazin.data.dir";
+
+	private static final String DEFAULT_NAME = "amazin-data";
+
+	private static final Logger logger = LogManager.getLogger(DataDirectory.class);
+
+	private DataDirectory() {
+	}
+
+	/**
+	 * Directorio configurado en property o, si no, subdirectory dentro de
+	 * amazin.data.dir o, si tampoco, dentro del directorio por defecto.
+	 */
+	public static Path resolve(String property, String subdirectory) {
+		String directory = System.getProperty(property);
+		if (directory != null && !directory.isBlank()) {
+			return Paths.get(directory.trim());
+		}
+		String data = System.getProperty(PROPERTY, System.getenv("AMAZIN_DATA_DIR"));
+		if (data != null && !data.isBlank()) {
+			return Paths.get(data.trim(), subdirectory);
+		}
+		String base = System.getProperty("catalina.base", System.getProperty("java.io.tmpdir"));
+		Path fallback = Paths.get(base, DEFAULT_NAME, subdirectory).toAbsolutePath();
+		logger.warn("Neither " + property + " nor " + PROPERTY + " is set; using " + fallback);
+		return fallback;
+	}
+
+	/**
+	 * Comprueba que directory es absoluto, lo crea si no existe y comprueba que
+	 * se puede escribir en el. property solo se usa en los mensajes de error.
+	 */
+	public static Path prepare(Path directory, String property) throws IOException {
+		if (!directory.isAbsolute()) {
+			throw new IOException("Directory must be an absolute path: " + directory + " (" + property + ")");
+		}
+		Files.createDirectories(directory);
+		if (!Files.isDirectory(directory) || !Files.isWritable(directory)) {
+			throw new IOException("Directory is not writable: " + directory + " (" + property + ")");
+		}
+		return directory;
+	}
+}
@@ -0,0 +1,51 @@
+package com.miw.persistence;
+
+import java.util.Locale;
+
+/**
+ * Modo de despliegue de la base de datos HSQLDB.
+ *
+ * Se elige con la propiedad de sistema amazin.db.mode (o la variable de entorno
+ * AMAZIN_DB_MODE):
+ * <ul>
+ * <li>server: servidor HSQLDB externo, la URL de persistence.xml (por defecto).</li>
+ * <li>file: HSQLDB dentro del proceso, en fichero, con transacciones MVCC. La ruta
+ * se configura con amazin.db.path.</li>
+ * <li>mem: HSQLDB dentro del proceso y en memoria, para pruebas y benchmarks.</li>
+ * </ul>
+ */
+public enum DatabaseMode {
+	SERVER, FILE, MEM;
+
+	public static final String MODE_PROPERTY = "amazin.db.mode";
+	public static final String PATH_PROPERTY = "amazin.db.path";
+
+	private static final String DEFAULT_PATH = "amazin-db/amazin";
+
+	public static DatabaseMode current() {
+		String mode = System.getProperty(MODE_PROPERTY, System.getenv("AMAZIN_DB_MODE"));
+		if (mode == null || mode.isBlank()) {
+			return SERVER;
+		}
+		return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+	}
+
+	public boolean isEmbedded() {
+		return this != SERVER;
+	}
+
+	/**
+	 * URL JDBC para los modos embebidos; null en modo servidor (se usa la de
+	 * persistence.xml).
+	 */
+	public String jdbcUrl() {
+		switch (this) {
+		case FILE:
+			return "jdbc:hsqldb:file:" + System.getProperty(PATH_PROPERTY, DEFAULT_PATH) + ";hsqldb.tx=mvcc";
+		case MEM:
+			return "jdbc:hsqldb:mem:amazin;hsqldb.tx=mvcc";
+		default:
+			return null;
+		}
+	}
+}
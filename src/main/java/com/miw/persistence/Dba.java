@@ -1,5 +1,12 @@
 package com.miw.persistence;
 
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 import jakarta.persistence.Persistence;
@@ -31,6 +38,7 @@ public class Dba {
 		}
 
 		outer = emf.createEntityManager();
+		QueryCounter.transactionStarted();
 
 		if (readOnly == false) {
 			outer.getTransaction().begin();
@@ -89,6 +97,20 @@ public class Dba {
 		return outer != null && outer.getTransaction().getRollbackOnly();
 	}
 
+	/**
+	 * Live metrics of the connection pool behind the persistence unit.
+	 */
+	public static PoolMetrics getPoolMetrics() {
+		return PoolMetrics.getInstance();
+	}
+
+	/**
+	 * Hit/miss/eviction statistics of the second-level cache regions.
+	 */
+	public static CacheMetrics getCacheMetrics() {
+		return new CacheMetrics(emf);
+	}
+
 	// thread safe way to initialize the entity manager factory.
 	private void initialize() {
 
@@ -96,21 +118,78 @@ public class Dba {
 			return;
 		}
 
-		synchronized (this) {
+		synchronized (Dba.class) {
 
 			if (initialized) {
 				return;
 			}
 
-			initialized = true;
-
 			try {
-				emf = Persistence.createEntityManagerFactory("JPA_PU");
+				DatabaseMode mode = DatabaseMode.current();
+				emf = Persistence.createEntityManagerFactory("JPA_PU", overrides(mode));
+				logger.info("Persistence unit JPA_PU started in " + mode + " mode");
+
+				if (mode.isEmbedded()) {
+					seedIfEmpty();
+				}
 
 			} catch (Throwable t) {
 				logger.error("Failed to setup persistence unit!", t);
 				return;
+			} finally {
+				initialized = true;
+			}
+		}
+	}
+
+	// System properties named amazin.* override the values of persistence.xml
+	private static Map<String, Object> overrides(DatabaseMode mode) {
+		Map<String, Object> overrides = new HashMap<>();
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith("amazin.")) {
+				overrides.put(name, System.getProperty(name));
+			}
+		}
+		if (mode.isEmbedded()) {
+			overrides.put("jakarta.persistence.jdbc.url", mode.jdbcUrl());
+		}
+		return overrides;
+	}
+
+	// The embedded databases start empty: load META-INF/seed.sql once.
+	private void seedIfEmpty() throws Exception {
+		EntityManager em = emf.createEntityManager();
+		try {
+			long books = em.createQuery("Select count(b) From Book b", Long.class).getSingleResult();
+			if (books > 0) {
+				return;
+			}
+
+			em.getTransaction().begin();
+			int statements = 0;
+			try (InputStream in = Dba.class.getResourceAsStream("/META-INF/seed.sql")) {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.isEmpty() || line.startsWith("--")) {
+						continue;
+					}
+					if (line.endsWith(";")) {
+						line = line.substring(0, line.length() - 1);
+					}
+					em.createNativeQuery(line).executeUpdate();
+					statements++;
+				}
+			}
+			em.getTransaction().commit();
+			logger.info("Embedded database seeded with " + statements + " statements");
+
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
 			}
+			em.close();
 		}
 	}
 }
\ No newline at end of file
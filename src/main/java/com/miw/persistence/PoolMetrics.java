@@ -0,0 +1,75 @@
+package com.miw.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.miw.metrics.Histogram;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Metricas en vivo del pool de conexiones usado por Dba.
+ */
+public class PoolMetrics implements MetricsTrackerFactory {
+
+	private static final PoolMetrics INSTANCE = new PoolMetrics();
+
+	private final Histogram acquireTime = new Histogram();
+	private final AtomicLong timeouts = new AtomicLong();
+	private volatile HikariPoolMXBean pool;
+
+	public static PoolMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	void bind(HikariPoolMXBean pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public IMetricsTracker create(String poolName, PoolStats poolStats) {
+		return new IMetricsTracker() {
+			@Override
+			public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+				acquireTime.recordNanos(elapsedAcquiredNanos);
+			}
+
+			@Override
+			public void recordConnectionTimeout() {
+				timeouts.incrementAndGet();
+			}
+		};
+	}
+
+	public int getActiveConnections() {
+		return pool == null ? 0 : pool.getActiveConnections();
+	}
+
+	public int getIdleConnections() {
+		return pool == null ? 0 : pool.getIdleConnections();
+	}
+
+	public int getTotalConnections() {
+		return pool == null ? 0 : pool.getTotalConnections();
+	}
+
+	public int getWaiters() {
+		return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+	}
+
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	public Histogram getAcquireTime() {
+		return acquireTime;
+	}
+
+	@Override
+	public String toString() {
+		return "Pool [active=" + getActiveConnections() + ", idle=" + getIdleConnections()
+				+ ", total=" + getTotalConnections() + ", waiters=" + getWaiters()
+				+ ", timeouts=" + getTimeouts() + ", acquireTime={" + acquireTime + "}]";
+	}
+}
@@ -0,0 +1,119 @@
+package com.miw.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.logging.log4j.*;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+import org.hibernate.service.spi.Configurable;
+import org.hibernate.service.spi.Stoppable;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * ConnectionProvider de Hibernate respaldado por un pool HikariCP acotado.
+ *
+ * Se configura desde persistence.xml (propiedades amazin.pool.*), que a su vez
+ * pueden sobrescribirse con propiedades de sistema del mismo nombre (ver Dba).
+ */
+public class PooledConnectionProvider implements ConnectionProvider, Configurable, Stoppable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String MIN_IDLE = "amazin.pool.minIdle";
+	public static final String MAX_SIZE = "amazin.pool.maxSize";
+	public static final String CONNECTION_TIMEOUT = "amazin.pool.connectionTimeoutMs";
+	public static final String LEAK_DETECTION_THRESHOLD = "amazin.pool.leakDetectionThresholdMs";
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	private HikariDataSource dataSource;
+
+	@Override
+	public void configure(@SuppressWarnings("rawtypes") Map props) {
+		HikariConfig config = new HikariConfig();
+		config.setPoolName("amazin");
+		config.setJdbcUrl(property(props, "jakarta.persistence.jdbc.url", "hibernate.connection.url"));
+		config.setUsername(property(props, "jakarta.persistence.jdbc.user", "hibernate.connection.username"));
+		config.setPassword(property(props, "jakarta.persistence.jdbc.password", "hibernate.connection.password"));
+		String driver = property(props, "jakarta.persistence.jdbc.driver", "hibernate.connection.driver_class");
+		if (driver != null) {
+			config.setDriverClassName(driver);
+		}
+
+		config.setMinimumIdle(intProperty(props, MIN_IDLE, 2));
+		config.setMaximumPoolSize(intProperty(props, MAX_SIZE, 10));
+		config.setConnectionTimeout(intProperty(props, CONNECTION_TIMEOUT, 5000));
+		config.setLeakDetectionThreshold(intProperty(props, LEAK_DETECTION_THRESHOLD, 0));
+		// Hibernate gestiona las transacciones, el pool entrega conexiones sin autocommit
+		config.setAutoCommit(false);
+		config.setMetricsTrackerFactory(PoolMetrics.getInstance());
+
+		dataSource = new HikariDataSource(config);
+		PoolMetrics.getInstance().bind(dataSource.getHikariPoolMXBean());
+
+		logger.info("Connection pool started: url=" + config.getJdbcUrl() + ", minIdle=" + config.getMinimumIdle()
+				+ ", maxSize=" + config.getMaximumPoolSize() + ", connectionTimeout=" + config.getConnectionTimeout()
+				+ "ms, leakDetectionThreshold=" + config.getLeakDetectionThreshold() + "ms");
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	@Override
+	public void closeConnection(Connection conn) throws SQLException {
+		conn.close();
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public boolean isUnwrappableAs(Class unwrapType) {
+		return ConnectionProvider.class.equals(unwrapType) || PooledConnectionProvider.class.isAssignableFrom(unwrapType)
+				|| DataSource.class.isAssignableFrom(unwrapType);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap(Class<T> unwrapType) {
+		if (ConnectionProvider.class.equals(unwrapType) || PooledConnectionProvider.class.isAssignableFrom(unwrapType)) {
+			return (T) this;
+		}
+		if (DataSource.class.isAssignableFrom(unwrapType)) {
+			return (T) dataSource;
+		}
+		throw new UnknownUnwrapTypeException(unwrapType);
+	}
+
+	@Override
+	public void stop() {
+		if (dataSource != null) {
+			dataSource.close();
+			logger.info("Connection pool stopped");
+		}
+	}
+
+	private static String property(Map<?, ?> props, String key, String fallback) {
+		Object value = props.get(key);
+		if (value == null) {
+			value = props.get(fallback);
+		}
+		return value == null ? null : value.toString();
+	}
+
+	private static int intProperty(Map<?, ?> props, String key, int defaultValue) {
+		Object value = props.get(key);
+		return value == null ? defaultValue : Integer.parseInt(value.toString().trim());
+	}
+}
@@ -0,0 +1,99 @@
+package com.miw.persistence;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Cuenta las sentencias SQL y las transacciones (Dba abiertos) de cada
+ * peticion web.
+ *
+ * Hibernate pasa por inspect() cada sentencia que prepara (se registra en
+ * persistence.xml como hibernate.session_factory.statement_inspector); las
+ * lecturas servidas por la cache de segundo nivel no llegan a la BD y no se
+ * cuentan, ni tampoco el JDBC directo de doWork(). Los contadores son por
+ * hilo: solo cuentan entre begin() y end(), que llama QueryCountInterceptor.
+ */
+public class QueryCounter implements StatementInspector {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ThreadLocal<long[]> CURRENT = new ThreadLocal<>();
+
+	private static final int QUERIES = 0;
+	private static final int TRANSACTIONS = 1;
+
+	// Totales por ruta: peticiones, sentencias, transacciones y maximo de sentencias
+	private static final ConcurrentMap<String, AtomicLong[]> BY_PATH = new ConcurrentHashMap<>();
+
+	@Override
+	public String inspect(String sql) {
+		long[] counts = CURRENT.get();
+		if (counts != null) {
+			counts[QUERIES]++;
+		}
+		return sql;
+	}
+
+	static void transactionStarted() {
+		long[] counts = CURRENT.get();
+		if (counts != null) {
+			counts[TRANSACTIONS]++;
+		}
+	}
+
+	/**
+	 * Empieza a contar en el hilo actual.
+	 */
+	public static void begin() {
+		CURRENT.set(new long[2]);
+	}
+
+	public static long getQueries() {
+		long[] counts = CURRENT.get();
+		return counts == null ? 0 : counts[QUERIES];
+	}
+
+	public static long getTransactions() {
+		long[] counts = CURRENT.get();
+		return counts == null ? 0 : counts[TRANSACTIONS];
+	}
+
+	/**
+	 * Deja de contar en el hilo actual y, si path no es null, acumula lo contado
+	 * en los totales de esa ruta.
+	 */
+	public static void end(String path) {
+		long[] counts = CURRENT.get();
+		CURRENT.remove();
+		if (counts == null || path == null) {
+			return;
+		}
+		AtomicLong[] totals = BY_PATH.computeIfAbsent(path,
+				p -> new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong(), new AtomicLong() });
+		totals[0].incrementAndGet();
+		totals[1].addAndGet(counts[QUERIES]);
+		totals[2].addAndGet(counts[TRANSACTIONS]);
+		totals[3].accumulateAndGet(counts[QUERIES], Math::max);
+	}
+
+	public static String report() {
+		StringBuilder sb = new StringBuilder("RequestQueries\n");
+		for (Map.Entry<String, AtomicLong[]> e : new TreeMap<>(BY_PATH).entrySet()) {
+			AtomicLong[] t = e.getValue();
+			long requests = t[0].get();
+			sb.append("  ").append(e.getKey())
+				.append(": requests=").append(requests)
+				.append(", queries/request=").append(String.format(Locale.ROOT, "%.2f", (double) t[1].get() / requests))
+				.append(", transactions/request=").append(String.format(Locale.ROOT, "%.2f", (double) t[2].get() / requests))
+				.append(", maxQueries=").append(t[3].get())
+				.append('\n');
+		}
+		return sb.toString();
+	}
+}
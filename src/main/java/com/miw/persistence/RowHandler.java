@@ -0,0 +1,10 @@
+package com.miw.persistence;
+
+/**
+ * Recibe las filas de una consulta de una en una, mientras se recorre el
+ * resultado, sin materializar la lista completa.
+ */
+@FunctionalInterface
+public interface RowHandler<T> {
+	void handle(T row) throws Exception;
+}
@@ -1,18 +1,70 @@
 package com.miw.persistence.book;
 
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
 
+import jakarta.persistence.CacheRetrieveMode;
+import jakarta.persistence.CacheStoreMode;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.TypedQuery;
 
 import org.apache.logging.log4j.*;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
 
 import com.miw.model.Book;
+import com.miw.model.BookSort;
+import com.miw.persistence.DatabaseMode;
 import com.miw.persistence.Dba;
+import com.miw.persistence.RowHandler;
 
 public class BookDAO implements BookDataService  {
 
 	protected Logger logger = LogManager.getLogger(getClass());
 
+	// Filas por viaje al cursor JDBC y cada cuantas filas se vacia el contexto de persistencia
+	private static final int STREAM_FETCH_SIZE = 500;
+
+	// Ids por cada consulta "where id in (...)"
+	private static final int IN_CHUNK_SIZE = 100;
+
+	// Los modos embebidos usan hsqldb.tx=mvcc (ver findForUpdate)
+	private static final boolean LOCK_ROWS_BY_UPDATE = DatabaseMode.current().isEmbedded();
+
+	private StockUpdateStrategy stockUpdateStrategy = StockUpdateStrategy.CONDITIONAL_UPDATE;
+
+	private OptimisticStockUpdater optimisticStockUpdater = new OptimisticStockUpdater();
+
+	private InventoryLedger inventoryLedger;
+
+	// Se configura desde XML
+	public void setStockUpdateStrategy(StockUpdateStrategy stockUpdateStrategy) {
+		this.stockUpdateStrategy = stockUpdateStrategy;
+	}
+
+	// Se configura desde XML (reintentos de la estrategia OPTIMISTIC)
+	public void setOptimisticStockUpdater(OptimisticStockUpdater optimisticStockUpdater) {
+		this.optimisticStockUpdater = optimisticStockUpdater;
+	}
+
+	// Se configura desde XML (stock en memoria de la estrategia LEDGER)
+	public void setInventoryLedger(InventoryLedger inventoryLedger) {
+		this.inventoryLedger = inventoryLedger;
+	}
+
+	public StockUpdateStrategy getStockUpdateStrategy() {
+		return stockUpdateStrategy;
+	}
+
 	public List<Book> getBooks() throws Exception {
 
 		List<Book> resultList = null;
@@ -23,9 +75,11 @@ public class BookDAO implements BookDataService  {
 
 			resultList = em.createQuery("Select a From Book a", Book.class).getResultList();
 
-			logger.debug("Result list: "+ resultList.toString());
-			for (Book next : resultList) {
-				logger.debug("next book: " + next);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Result list: "+ resultList.toString());
+				for (Book next : resultList) {
+					logger.debug("next book: " + next);
+				}
 			}
 
 		} finally {
@@ -34,7 +88,76 @@ public class BookDAO implements BookDataService  {
 		}
 
 		// We return the result
-		return resultList;
+		return withLedgerStock(resultList);
+	}
+
+	@Override
+	public List<Book> getBooksPage(BookSort sort, Integer afterId, String afterTitle, int limit) throws Exception {
+
+		List<Book> resultList = null;
+
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+			TypedQuery<Book> query;
+
+			if (sort == BookSort.TITLE) {
+				if (afterId == null) {
+					query = em.createQuery("Select b From Book b Order By b.title, b.id", Book.class);
+				} else {
+					// Seek sobre el indice (title, id)
+					query = em.createQuery("Select b From Book b Where b.title > :title"
+							+ " Or (b.title = :title And b.id > :id) Order By b.title, b.id", Book.class)
+							.setParameter("title", afterTitle == null ? "" : afterTitle)
+							.setParameter("id", afterId);
+				}
+			} else {
+				query = em.createQuery("Select b From Book b Where b.id > :id Order By b.id", Book.class)
+						.setParameter("id", afterId == null ? Integer.MIN_VALUE : afterId);
+			}
+
+			resultList = query.setMaxResults(limit).getResultList();
+			logger.debug("Catalog page " + sort + " after " + afterId + ": " + resultList.size() + " books");
+
+		} finally {
+			// 100% sure that the transaction and entity manager will be closed
+			dba.closeEm();
+		}
+
+		return withLedgerStock(resultList);
+	}
+
+	@Override
+	public long streamBooks(RowHandler<Book> handler) throws Exception {
+		long rows = 0;
+
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+
+			TypedQuery<Book> query = em.createQuery("Select b From Book b Join Fetch b.vat Order By b.id", Book.class)
+					.setHint("org.hibernate.fetchSize", STREAM_FETCH_SIZE)
+					.setHint("org.hibernate.readOnly", true)
+					// Una exportacion no debe llenar la cache de segundo nivel
+					.setHint("jakarta.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS)
+					.setHint("jakarta.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+
+			try (Stream<Book> stream = query.getResultStream()) {
+				for (Book book : (Iterable<Book>) stream::iterator) {
+					handler.handle(withLedgerStock(book));
+					if (++rows % STREAM_FETCH_SIZE == 0) {
+						em.clear();
+					}
+				}
+			}
+			logger.debug("Streamed " + rows + " books");
+
+		} finally {
+			// 100% sure that the transaction and entity manager will be closed
+			dba.closeEm();
+		}
+
+		return rows;
 	}
 
 	public Book newBook(Book book) throws Exception {
@@ -53,6 +176,10 @@ public class BookDAO implements BookDataService  {
 			dba.closeEm();
 		}
 
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			inventoryLedger.register(book.getId(), book.getStock());
+		}
+
 		// We return the result
 		return book;
 	}
@@ -72,16 +199,94 @@ public class BookDAO implements BookDataService  {
 			dba.closeEm();
 		}
 
-		return book;
+		return withLedgerStock(book);
+	}
+
+	@Override
+	public List<Book> getBooksByIds(Collection<Integer> ids) throws Exception {
+		List<Book> books = new ArrayList<>(ids.size());
+		if (ids.isEmpty()) {
+			return books;
+		}
+
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+
+			// Mira primero la cache de segundo nivel y pide el resto con
+			// "where id in (...)" de IN_CHUNK_SIZE en IN_CHUNK_SIZE
+			List<Book> found = em.unwrap(Session.class).byMultipleIds(Book.class)
+					.withBatchSize(IN_CHUNK_SIZE)
+					.multiLoad(new ArrayList<>(new TreeSet<>(ids)));
+			for (Book book : found) {
+				if (book != null) {
+					books.add(book);
+				}
+			}
+			logger.debug("Found " + books.size() + " of " + ids.size() + " books");
+
+		} finally {
+			// 100% sure that the transaction and entity manager will be closed
+			dba.closeEm();
+		}
+
+		return withLedgerStock(books);
+	}
+
+	@Override
+	public int[] getBookIds() throws Exception {
+		int[] ids;
+
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+			List<Integer> result = em.createQuery("Select b.id From Book b Order By b.id", Integer.class)
+					.getResultList();
+			ids = new int[result.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = result.get(i);
+			}
+
+		} finally {
+			// 100% sure that the transaction and entity manager will be closed
+			dba.closeEm();
+		}
+
+		return ids;
 	}
 
 	@Override
 	public void increaseBookStock(int bookId, int quantity) throws Exception {
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			if (!inventoryLedger.increase(bookId, quantity)) {
+				logger.error("Book with ID " + bookId + " not found");
+				throw new Exception("Book with ID " + bookId + " not found");
+			}
+			logger.debug("Stock increased for book " + bookId + " - Quantity added: " + quantity);
+			return;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.CONDITIONAL_UPDATE) {
+			if (updateStockConditionally(bookId, quantity) == 0) {
+				logger.error("Book with ID " + bookId + " not found");
+				throw new Exception("Book with ID " + bookId + " not found");
+			}
+			logger.debug("Stock increased for book " + bookId + " - Quantity added: " + quantity);
+			return;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.OPTIMISTIC) {
+			if (!optimisticStockUpdater.apply(bookId, quantity)) {
+				logger.error("Book with ID " + bookId + " not found");
+				throw new Exception("Book with ID " + bookId + " not found");
+			}
+			logger.debug("Stock increased for book " + bookId + " - Quantity added: " + quantity);
+			return;
+		}
+
 		Dba dba = new Dba();
 		try {
 			EntityManager em = dba.getActiveEm();
 			// Usar bloqueo pesimista para evitar condiciones de carrera
-			Book book = em.find(Book.class, bookId, jakarta.persistence.LockModeType.PESSIMISTIC_WRITE);
+			Book book = findForUpdate(em, bookId);
 			
 			if (book != null) {
 				// Incrementar stock en una sola transacción atómica
@@ -103,8 +308,53 @@ public class BookDAO implements BookDataService  {
 		}
 	}
 	
+	@Override
+	public Map<Integer, Integer> getStocks(Collection<Integer> ids) throws Exception {
+		Map<Integer, Integer> stocks = new HashMap<>();
+		if (ids.isEmpty()) {
+			return stocks;
+		}
+		List<Integer> idList = new ArrayList<>(new TreeSet<>(ids));
+
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			for (int id : idList) {
+				int stock = inventoryLedger.getStock(id);
+				if (stock >= 0) {
+					stocks.put(id, stock);
+				}
+			}
+			return stocks;
+		}
+
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+
+			// Solo id y stock: una proyeccion no pasa por la cache de segundo nivel,
+			// asi que es el stock de la BD en este momento
+			for (int from = 0; from < idList.size(); from += IN_CHUNK_SIZE) {
+				List<Object[]> rows = em.createQuery("SELECT b.id, b.stock FROM Book b WHERE b.id IN :ids", Object[].class)
+						.setParameter("ids", idList.subList(from, Math.min(from + IN_CHUNK_SIZE, idList.size())))
+						.getResultList();
+				for (Object[] row : rows) {
+					stocks.put((Integer) row[0], (Integer) row[1]);
+				}
+			}
+			logger.debug("Stock of " + stocks.size() + " of " + idList.size() + " books: " + stocks);
+
+		} finally {
+			// 100% sure that the transaction and entity manager will be closed
+			dba.closeEm();
+		}
+		return stocks;
+	}
+
 	@Override
 	public boolean checkStockAvailability(int bookId, int requestedQuantity) throws Exception {
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			return inventoryLedger.isAvailable(bookId, requestedQuantity);
+		}
+
 		Dba dba = new Dba(true); // Solo lectura
 		try {
 			EntityManager em = dba.getActiveEm();
@@ -127,12 +377,40 @@ public class BookDAO implements BookDataService  {
 	
 	@Override
 	public boolean reduceStock(int bookId, int quantity) throws Exception {
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			boolean reduced = inventoryLedger.reduce(bookId, quantity);
+			if (reduced) {
+				logger.debug("Stock reduced for book " + bookId + " - Quantity reduced: " + quantity);
+			} else {
+				logger.error("Not enough stock or book not found: " + bookId + ", Requested=" + quantity);
+			}
+			return reduced;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.CONDITIONAL_UPDATE) {
+			boolean reduced = updateStockConditionally(bookId, -quantity) == 1;
+			if (reduced) {
+				logger.debug("Stock reduced for book " + bookId + " - Quantity reduced: " + quantity);
+			} else {
+				logger.error("Not enough stock or book not found: " + bookId + ", Requested=" + quantity);
+			}
+			return reduced;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.OPTIMISTIC) {
+			boolean reduced = optimisticStockUpdater.apply(bookId, -quantity);
+			if (reduced) {
+				logger.debug("Stock reduced for book " + bookId + " - Quantity reduced: " + quantity);
+			} else {
+				logger.error("Not enough stock or book not found: " + bookId + ", Requested=" + quantity);
+			}
+			return reduced;
+		}
+
 		Dba dba = new Dba();
 		try {
 			EntityManager em = dba.getActiveEm();
 			
 			// BLOQUEO PESIMISTA para evitar condiciones de carrera
-			Book book = em.find(Book.class, bookId, jakarta.persistence.LockModeType.PESSIMISTIC_WRITE);
+			Book book = findForUpdate(em, bookId);
 			
 			if (book != null && book.getStock() >= quantity) {
 				book.setStock(book.getStock() - quantity);
@@ -157,4 +435,252 @@ public class BookDAO implements BookDataService  {
 			dba.closeEm();
 		}
 	}
-}
\ No newline at end of file
+
+	// Con LEDGER el stock de la BD puede ir por detras: manda el de memoria
+	private Book withLedgerStock(Book book) throws Exception {
+		if (book != null && stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			book.setStock(inventoryLedger.getStock(book.getId()));
+		}
+		return book;
+	}
+
+	private List<Book> withLedgerStock(List<Book> books) throws Exception {
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			for (Book book : books) {
+				withLedgerStock(book);
+			}
+		}
+		return books;
+	}
+
+	/**
+	 * Suma delta al stock en una sola sentencia, sin leer ni bloquear la fila
+	 * antes. Si delta es negativo solo se aplica cuando hay stock suficiente.
+	 * Devuelve el numero de filas modificadas (0 o 1).
+	 */
+	private int updateStockConditionally(int bookId, int delta) throws Exception {
+		int[] updated = new int[1];
+
+		Dba dba = new Dba();
+		try {
+			EntityManager em = dba.getActiveEm();
+			evictStock(em, List.of(bookId));
+
+			// JDBC directo: Hibernate no sabe que tabla toca y no vacia la region de
+			// Book entera, como haria con una consulta nativa
+			em.unwrap(Session.class).doWork(connection -> {
+				try (PreparedStatement update = connection.prepareStatement(
+						"UPDATE Book SET stock = stock + ?, version = version + 1 WHERE id = ? AND stock + ? >= 0")) {
+					update.setInt(1, delta);
+					update.setInt(2, bookId);
+					update.setInt(3, delta);
+					updated[0] = update.executeUpdate();
+				}
+			});
+
+		} catch (Exception e) {
+			logger.error("Error updating stock for book " + bookId, e);
+			throw e;
+		} finally {
+			dba.closeEm();
+		}
+		return updated[0];
+	}
+
+	// Lee el libro con bloqueo PESSIMISTIC_WRITE. Con HSQLDB embebido (MVCC, ver
+	// DatabaseMode) SELECT ... FOR UPDATE no espera al otro escritor y el merge
+	// acabaria en un conflicto de version; un UPDATE si espera, asi que antes se
+	// bloquea la fila escribiendola sin cambiar nada
+	private Book findForUpdate(EntityManager em, int bookId) {
+		if (LOCK_ROWS_BY_UPDATE) {
+			em.unwrap(Session.class).doWork(connection -> {
+				try (PreparedStatement update = connection.prepareStatement(
+						"UPDATE Book SET stock = stock WHERE id = ?")) {
+					update.setInt(1, bookId);
+					update.executeUpdate();
+				}
+			});
+		}
+		return em.find(Book.class, bookId, jakarta.persistence.LockModeType.PESSIMISTIC_WRITE);
+	}
+
+	// Para los UPDATE directos sobre Book: el libro sale de la cache de segundo
+	// nivel antes de modificarlo y otra vez al terminar la transaccion, por si una
+	// lectura concurrente guardo entre tanto el stock anterior
+	private void evictStock(EntityManager em, Collection<Integer> bookIds) {
+		EntityManagerFactory emf = em.getEntityManagerFactory();
+		for (Integer bookId : bookIds) {
+			emf.getCache().evict(Book.class, bookId);
+		}
+		em.unwrap(SessionImplementor.class).getActionQueue().registerProcess((success, s) -> {
+			for (Integer bookId : bookIds) {
+				emf.getCache().evict(Book.class, bookId);
+			}
+		});
+	}
+
+	@Override
+	public boolean reduceStocks(Map<Integer, Integer> quantities) throws Exception {
+		// Orden ascendente de id: todas las transacciones bloquean las filas en el
+		// mismo orden y dos compras concurrentes no pueden caer en un deadlock
+		SortedMap<Integer, Integer> sorted = new TreeMap<>(quantities);
+		if (sorted.isEmpty()) {
+			return true;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			boolean reduced = inventoryLedger.reduceAll(sorted);
+			logger.debug("Stock reduction for books " + sorted + ": " + (reduced ? "applied" : "rejected"));
+			return reduced;
+		}
+
+		boolean reduced;
+
+		Dba dba = new Dba();
+		try {
+			EntityManager em = dba.getActiveEm();
+			reduced = reduceStocksInTransaction(em, sorted);
+
+			if (!reduced) {
+				// Todo o nada: se deshace cualquier linea ya descontada
+				dba.markRollback();
+			}
+
+		} catch (Exception e) {
+			logger.error("Error reducing stock for books " + sorted.keySet(), e);
+			dba.markRollback();
+			throw e;
+		} finally {
+			dba.closeEm();
+		}
+
+		logger.debug("Stock reduction for books " + sorted + ": " + (reduced ? "committed" : "rolled back"));
+		return reduced;
+	}
+
+	@Override
+	public boolean reduceStocks(EntityManager em, Map<Integer, Integer> quantities) throws Exception {
+		SortedMap<Integer, Integer> sorted = new TreeMap<>(quantities);
+		if (sorted.isEmpty()) {
+			return true;
+		}
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			if (!inventoryLedger.reduceAll(sorted)) {
+				return false;
+			}
+			// Las unidades se apartan ya; si la transaccion de quien llama no se
+			// confirma, se devuelven
+			em.unwrap(SessionImplementor.class).getActionQueue().registerProcess((success, s) -> {
+				if (!success) {
+					for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+						try {
+							inventoryLedger.increase(line.getKey(), line.getValue());
+						} catch (Exception e) {
+							logger.error("Error restoring stock for book " + line.getKey(), e);
+						}
+					}
+				}
+			});
+			return true;
+		}
+
+		boolean reduced = reduceStocksInTransaction(em, sorted);
+		logger.debug("Stock reduction for books " + sorted + " joined the current transaction: "
+				+ (reduced ? "applied" : "rejected"));
+		return reduced;
+	}
+
+	// Descuenta las lineas en la transaccion de em; con UPDATE directo, la cache de
+	// segundo nivel se invalida antes y despues del commit
+	private boolean reduceStocksInTransaction(EntityManager em, SortedMap<Integer, Integer> sorted) {
+		if (stockUpdateStrategy == StockUpdateStrategy.PESSIMISTIC_LOCK) {
+			return reduceStocksLocking(em, sorted);
+		}
+		evictStock(em, sorted.keySet());
+		return reduceStocksConditionally(em, sorted);
+	}
+
+	// Bloquea cada libro en orden y modifica las entidades; el flush final agrupa
+	// los UPDATE en lotes JDBC (hibernate.jdbc.batch_size, hibernate.order_updates)
+	private boolean reduceStocksLocking(EntityManager em, SortedMap<Integer, Integer> sorted) {
+		List<Book> books = new ArrayList<>(sorted.size());
+		for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+			Book book = findForUpdate(em, line.getKey());
+			if (book == null || book.getStock() < line.getValue()) {
+				logger.error("Not enough stock or book not found: " + line.getKey() + ", Requested=" + line.getValue());
+				return false;
+			}
+			books.add(book);
+		}
+		for (Book book : books) {
+			book.setStock(book.getStock() - sorted.get(book.getId()));
+		}
+		return true;
+	}
+
+	// Un UPDATE condicional por libro, enviados en un unico lote JDBC
+	private boolean reduceStocksConditionally(EntityManager em, SortedMap<Integer, Integer> sorted) {
+		int[][] counts = new int[1][];
+		em.unwrap(Session.class).doWork(connection -> {
+			try (PreparedStatement update = connection.prepareStatement(
+					"UPDATE Book SET stock = stock - ?, version = version + 1 WHERE id = ? AND stock >= ?")) {
+				for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+					update.setInt(1, line.getValue());
+					update.setInt(2, line.getKey());
+					update.setInt(3, line.getValue());
+					update.addBatch();
+				}
+				counts[0] = update.executeBatch();
+			}
+		});
+
+		int i = 0;
+		for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+			if (counts[0][i++] == 0) {
+				logger.error("Not enough stock or book not found: " + line.getKey() + ", Requested=" + line.getValue());
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void increaseStocks(EntityManager em, Map<Integer, Integer> quantities) throws Exception {
+		SortedMap<Integer, Integer> sorted = new TreeMap<>(quantities);
+		if (sorted.isEmpty()) {
+			return;
+		}
+		SessionImplementor session = em.unwrap(SessionImplementor.class);
+
+		if (stockUpdateStrategy == StockUpdateStrategy.LEDGER) {
+			// El ledger solo se toca si la transaccion de quien llama se confirma
+			session.getActionQueue().registerProcess((success, s) -> {
+				if (success) {
+					for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+						try {
+							inventoryLedger.increase(line.getKey(), line.getValue());
+						} catch (Exception e) {
+							logger.error("Error increasing stock for book " + line.getKey(), e);
+						}
+					}
+				}
+			});
+			return;
+		}
+
+		// Un UPDATE por libro, en orden de id y en un unico lote JDBC
+		evictStock(em, sorted.keySet());
+		session.doWork(connection -> {
+			try (PreparedStatement update = connection.prepareStatement(
+					"UPDATE Book SET stock = stock + ?, version = version + 1 WHERE id = ?")) {
+				for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+					update.setInt(1, line.getValue());
+					update.setInt(2, line.getKey());
+					update.addBatch();
+				}
+				update.executeBatch();
+			}
+		});
+
+		logger.debug("Stock increase for books " + sorted + " joined the current transaction");
+	}
+}
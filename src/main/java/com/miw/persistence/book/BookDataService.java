@@ -1,15 +1,39 @@
 package com.miw.persistence.book;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+
+import jakarta.persistence.EntityManager;
 
 import com.miw.model.Book;
+import com.miw.model.BookSort;
+import com.miw.persistence.RowHandler;
 
 public interface BookDataService {
 
 	List<Book> getBooks() throws Exception;
+	// Paginacion por keyset: hasta limit libros a continuacion del cursor (null = primera pagina)
+	public List<Book> getBooksPage(BookSort sort, Integer afterId, String afterTitle, int limit) throws Exception;
+	// Recorre todo el catalogo en orden de id con memoria constante
+	public long streamBooks(RowHandler<Book> handler) throws Exception;
 	public Book newBook(Book book) throws Exception;
 	public Book getBookById(int id) throws Exception;
+	// Varios libros en un numero constante de consultas; los ids inexistentes se ignoran
+	public List<Book> getBooksByIds(Collection<Integer> ids) throws Exception;
+	// Solo los ids de todo el catalogo, ordenados
+	public int[] getBookIds() throws Exception;
 	public void increaseBookStock(int bookId, int quantity) throws Exception;
 	public boolean checkStockAvailability(int bookId, int requestedQuantity) throws Exception;
+	// Stock actual de varios libros (bookId -> stock) con una sola consulta por cada
+	// IN_CHUNK_SIZE ids (o del ledger); los ids inexistentes no aparecen
+	public Map<Integer, Integer> getStocks(Collection<Integer> ids) throws Exception;
 	public boolean reduceStock(int bookId, int quantity) throws Exception;
+	// Descuenta varias lineas (bookId -> cantidad) en una transaccion: todas o ninguna
+	public boolean reduceStocks(Map<Integer, Integer> quantities) throws Exception;
+	// Descuenta varias lineas dentro de la transaccion ya abierta en em; si devuelve false
+	// quien llama debe deshacer su transaccion
+	public boolean reduceStocks(EntityManager em, Map<Integer, Integer> quantities) throws Exception;
+	// Suma stock a varios libros (bookId -> cantidad) dentro de la transaccion ya abierta en em
+	public void increaseStocks(EntityManager em, Map<Integer, Integer> quantities) throws Exception;
 }
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.miw.persistence.book;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+
+import org.apache.logging.log4j.*;
+import org.hibernate.Session;
+
+import com.miw.model.Book;
+import com.miw.persistence.Dba;
+
+/**
+ * Stock de todos los libros en memoria (estrategia LEDGER de BookDAO).
+ *
+ * Los contadores se cargan de la BD la primera vez que se usan y a partir de
+ * ahi son la unica fuente de verdad del stock: las compras y reservas los
+ * modifican con CAS y un hilo en segundo plano escribe en Book.stock, en un
+ * unico lote, los libros que han cambiado desde la ultima escritura. Al parar
+ * la aplicacion se hace una ultima escritura.
+ *
+ * Lo que no se haya escrito se pierde si la JVM muere sin parar.
+ */
+public class InventoryLedger {
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	// Los contadores se guardan en bloques; crecer solo anade bloques, nunca copia
+	// contadores, asi que un CAS concurrente nunca se pierde
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	// Libro que no esta en el ledger
+	private static final int ABSENT = -1;
+
+	private volatile AtomicIntegerArray[] stock = new AtomicIntegerArray[0];
+	private volatile AtomicIntegerArray[] dirty = new AtomicIntegerArray[0];
+	private volatile boolean loaded;
+
+	private long flushIntervalMillis = 1000;
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong rowsFlushed = new AtomicLong();
+	private final AtomicLong flushErrors = new AtomicLong();
+	private volatile long lastFlushMillis;
+
+	// Se configura desde XML
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	public void stop() {
+		ScheduledExecutorService s = scheduler;
+		if (s != null) {
+			s.shutdown();
+			try {
+				s.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (loaded) {
+			flush();
+		}
+	}
+
+	/**
+	 * Stock del libro, o -1 si el libro no existe.
+	 */
+	public int getStock(int bookId) throws Exception {
+		return slot(bookId);
+	}
+
+	public boolean isAvailable(int bookId, int quantity) throws Exception {
+		return slot(bookId) >= quantity;
+	}
+
+	/**
+	 * Resta quantity si hay stock suficiente. Devuelve false si no lo hay o si el
+	 * libro no existe.
+	 */
+	public boolean reduce(int bookId, int quantity) throws Exception {
+		if (slot(bookId) == ABSENT) {
+			return false;
+		}
+		AtomicIntegerArray counters = chunk(stock, bookId);
+		int i = bookId & CHUNK_MASK;
+		for (;;) {
+			int current = counters.get(i);
+			if (current < quantity) {
+				return false;
+			}
+			if (counters.compareAndSet(i, current, current - quantity)) {
+				markDirty(bookId);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Suma quantity. Devuelve false si el libro no existe.
+	 */
+	public boolean increase(int bookId, int quantity) throws Exception {
+		if (slot(bookId) == ABSENT) {
+			return false;
+		}
+		chunk(stock, bookId).addAndGet(bookId & CHUNK_MASK, quantity);
+		markDirty(bookId);
+		return true;
+	}
+
+	/**
+	 * Resta varias lineas (bookId -> cantidad): todas o ninguna. Si una linea
+	 * falla se devuelven las ya restadas.
+	 */
+	public boolean reduceAll(Map<Integer, Integer> quantities) throws Exception {
+		List<Map.Entry<Integer, Integer>> applied = new ArrayList<>(quantities.size());
+		for (Map.Entry<Integer, Integer> line : quantities.entrySet()) {
+			if (!reduce(line.getKey(), line.getValue())) {
+				for (Map.Entry<Integer, Integer> undo : applied) {
+					increase(undo.getKey(), undo.getValue());
+				}
+				return false;
+			}
+			applied.add(line);
+		}
+		return true;
+	}
+
+	/**
+	 * Alta de un libro nuevo con su stock inicial.
+	 */
+	public void register(int bookId, int initialStock) throws Exception {
+		if (!loaded) {
+			load(); // La carga ya incluye el libro nuevo
+			return;
+		}
+		ensureCapacity(bookId);
+		chunk(stock, bookId).compareAndSet(bookId & CHUNK_MASK, ABSENT, initialStock);
+	}
+
+	/**
+	 * Escribe en Book.stock los contadores modificados desde la ultima vez, en un
+	 * unico lote JDBC y una sola transaccion.
+	 */
+	public synchronized void flush() {
+		long start = System.currentTimeMillis();
+
+		// Se limpia la marca antes de leer el valor: un cambio posterior vuelve a
+		// marcar el libro y se escribe en la siguiente vuelta
+		List<int[]> rows = new ArrayList<>();
+		AtomicIntegerArray[] stockChunks = stock;
+		AtomicIntegerArray[] dirtyChunks = dirty;
+		for (int c = 0; c < dirtyChunks.length; c++) {
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if (dirtyChunks[c].get(i) != 0 && dirtyChunks[c].getAndSet(i, 0) != 0) {
+					rows.add(new int[] { (c << CHUNK_BITS) | i, stockChunks[c].get(i) });
+				}
+			}
+		}
+		if (rows.isEmpty()) {
+			return;
+		}
+
+		EntityManagerFactory emf = null;
+		Dba dba = new Dba();
+		try {
+			EntityManager em = dba.getActiveEm();
+			emf = em.getEntityManagerFactory();
+			em.unwrap(Session.class).doWork(connection -> {
+				try (PreparedStatement update = connection.prepareStatement(
+						"UPDATE Book SET stock = ?, version = version + 1 WHERE id = ?")) {
+					for (int[] row : rows) {
+						update.setInt(1, row[1]);
+						update.setInt(2, row[0]);
+						update.addBatch();
+					}
+					update.executeBatch();
+				}
+			});
+			dba.closeEm();
+
+			for (int[] row : rows) {
+				emf.getCache().evict(Book.class, row[0]);
+			}
+			flushes.incrementAndGet();
+			rowsFlushed.addAndGet(rows.size());
+			lastFlushMillis = System.currentTimeMillis() - start;
+			logger.debug("Flushed stock of " + rows.size() + " books in " + lastFlushMillis + " ms");
+
+		} catch (Exception e) {
+			// Se vuelven a marcar para el siguiente intento
+			flushErrors.incrementAndGet();
+			dba.markRollback();
+			for (int[] row : rows) {
+				markDirty(row[0]);
+			}
+			logger.error("Error flushing stock of " + rows.size() + " books", e);
+		} finally {
+			dba.closeEm();
+		}
+	}
+
+	// Valor del contador; carga el ledger o el libro si aun no estan
+	private int slot(int bookId) throws Exception {
+		if (!loaded) {
+			load();
+		}
+		if (bookId < 0) {
+			return ABSENT;
+		}
+		AtomicIntegerArray[] chunks = stock;
+		int c = bookId >>> CHUNK_BITS;
+		int value = c < chunks.length ? chunks[c].get(bookId & CHUNK_MASK) : ABSENT;
+		if (value == ABSENT) {
+			value = loadBook(bookId);
+		}
+		return value;
+	}
+
+	private synchronized void load() throws Exception {
+		if (loaded) {
+			return;
+		}
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+			List<Object[]> rows = em.createQuery("Select b.id, b.stock From Book b", Object[].class)
+					.getResultList();
+			for (Object[] row : rows) {
+				int id = (Integer) row[0];
+				ensureCapacity(id);
+				chunk(stock, id).set(id & CHUNK_MASK, (Integer) row[1]);
+			}
+			logger.info("Inventory ledger loaded with the stock of " + rows.size() + " books");
+		} finally {
+			dba.closeEm();
+		}
+		loaded = true;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "inventory-ledger-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	// Libro dado de alta fuera de esta aplicacion: se lee su stock de la BD
+	private int loadBook(int bookId) throws Exception {
+		Integer dbStock;
+		Dba dba = new Dba(true); // Solo lectura
+		try {
+			EntityManager em = dba.getActiveEm();
+			List<Integer> result = em.createQuery("Select b.stock From Book b Where b.id = ?1", Integer.class)
+					.setParameter(1, bookId)
+					.getResultList();
+			dbStock = result.isEmpty() ? null : result.get(0);
+		} finally {
+			dba.closeEm();
+		}
+		if (dbStock == null) {
+			return ABSENT;
+		}
+		register(bookId, dbStock);
+		return chunk(stock, bookId).get(bookId & CHUNK_MASK);
+	}
+
+	private void markDirty(int bookId) {
+		chunk(dirty, bookId).set(bookId & CHUNK_MASK, 1);
+	}
+
+	private static AtomicIntegerArray chunk(AtomicIntegerArray[] chunks, int bookId) {
+		return chunks[bookId >>> CHUNK_BITS];
+	}
+
+	private synchronized void ensureCapacity(int bookId) {
+		int needed = (bookId >>> CHUNK_BITS) + 1;
+		if (needed <= stock.length) {
+			return;
+		}
+		AtomicIntegerArray[] newStock = Arrays.copyOf(stock, needed);
+		AtomicIntegerArray[] newDirty = Arrays.copyOf(dirty, needed);
+		for (int c = stock.length; c < needed; c++) {
+			newStock[c] = new AtomicIntegerArray(CHUNK_SIZE);
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				newStock[c].set(i, ABSENT);
+			}
+			newDirty[c] = new AtomicIntegerArray(CHUNK_SIZE);
+		}
+		// dirty antes que stock: quien vea el bloque de stock ya tiene su marca
+		dirty = newDirty;
+		stock = newStock;
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getRowsFlushed() {
+		return rowsFlushed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "InventoryLedger [loaded=" + loaded + ", flushIntervalMillis=" + flushIntervalMillis + ", flushes="
+				+ getFlushes() + ", rowsFlushed=" + getRowsFlushed() + ", flushErrors=" + flushErrors.get()
+				+ ", lastFlushMillis=" + lastFlushMillis + "]";
+	}
+}
@@ -0,0 +1,118 @@
+package com.miw.persistence.book;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.OptimisticLockException;
+
+import org.apache.logging.log4j.*;
+import org.hibernate.StaleStateException;
+
+import com.miw.model.Book;
+import com.miw.persistence.Dba;
+
+/**
+ * Modifica el stock de un libro sin bloquear la fila: lee el libro, cambia el
+ * stock y deja que el @Version de Book detecte escrituras concurrentes. Si hay
+ * conflicto se reintenta con una espera aleatoria (full jitter) hasta agotar
+ * maxAttempts.
+ */
+public class OptimisticStockUpdater {
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	private final StockUpdateMetrics metrics = StockUpdateMetrics.getInstance();
+
+	private int maxAttempts = 8;
+	private long baseBackoffMillis = 1;
+	private long maxBackoffMillis = 50;
+
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public void setBaseBackoffMillis(long baseBackoffMillis) {
+		this.baseBackoffMillis = baseBackoffMillis;
+	}
+
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Suma delta al stock del libro. Devuelve false si el libro no existe o si
+	 * delta es negativo y no hay stock suficiente.
+	 *
+	 * @throws OptimisticLockException si se agotan los reintentos
+	 */
+	public boolean apply(int bookId, int delta) throws Exception {
+		metrics.operation();
+
+		for (int attempt = 1;; attempt++) {
+			metrics.attempt();
+			try {
+				return tryApply(bookId, delta);
+
+			} catch (Exception e) {
+				if (!isVersionConflict(e)) {
+					throw e;
+				}
+				metrics.conflict();
+
+				if (attempt >= maxAttempts) {
+					metrics.abort();
+					logger.error("Giving up stock update for book " + bookId + " after " + attempt + " attempts");
+					throw new OptimisticLockException("Stock update for book " + bookId + " aborted after "
+							+ attempt + " attempts", e);
+				}
+				logger.debug("Version conflict updating stock of book " + bookId + ", attempt " + attempt);
+				backoff(attempt);
+			}
+		}
+	}
+
+	private boolean tryApply(int bookId, int delta) throws Exception {
+		EntityManagerFactory emf = null;
+		boolean conflict = true;
+
+		Dba dba = new Dba();
+		try {
+			EntityManager em = dba.getActiveEm();
+			emf = em.getEntityManagerFactory();
+
+			Book book = em.find(Book.class, bookId);
+			if (book == null || book.getStock() + delta < 0) {
+				conflict = false;
+				return false;
+			}
+			book.setStock(book.getStock() + delta);
+
+			// El commit comprueba la version: UPDATE ... WHERE id = ? AND version = ?
+			dba.closeEm();
+			conflict = false;
+			return true;
+
+		} finally {
+			dba.closeEm();
+			// La copia en cache puede estar desfasada; el siguiente intento lee de la BD
+			if (conflict && emf != null) {
+				emf.getCache().evict(Book.class, bookId);
+			}
+		}
+	}
+
+	private void backoff(int attempt) throws InterruptedException {
+		long ceiling = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(attempt, 20));
+		Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+	}
+
+	private static boolean isVersionConflict(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof OptimisticLockException || t instanceof StaleStateException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,71 @@
+package com.miw.persistence.book;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contadores de las actualizaciones optimistas de stock: reintentos por
+ * conflicto de version y operaciones abortadas al agotar los intentos.
+ */
+public class StockUpdateMetrics {
+
+	private static final StockUpdateMetrics INSTANCE = new StockUpdateMetrics();
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+	private final AtomicLong aborts = new AtomicLong();
+
+	public static StockUpdateMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	void operation() {
+		operations.incrementAndGet();
+	}
+
+	void attempt() {
+		attempts.incrementAndGet();
+	}
+
+	void conflict() {
+		conflicts.incrementAndGet();
+	}
+
+	void abort() {
+		aborts.incrementAndGet();
+	}
+
+	public long getOperations() {
+		return operations.get();
+	}
+
+	public long getAttempts() {
+		return attempts.get();
+	}
+
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	public long getAborts() {
+		return aborts.get();
+	}
+
+	public double getRetriesPerOperation() {
+		long ops = operations.get();
+		return ops == 0 ? 0 : (double) (attempts.get() - ops) / ops;
+	}
+
+	public double getAbortRate() {
+		long ops = operations.get();
+		return ops == 0 ? 0 : (double) aborts.get() / ops;
+	}
+
+	@Override
+	public String toString() {
+		return "OptimisticStock [operations=" + getOperations() + ", attempts=" + getAttempts() + ", conflicts="
+				+ getConflicts() + ", aborts=" + getAborts() + ", retriesPerOperation="
+				+ String.format("%.3f", getRetriesPerOperation()) + ", abortRate="
+				+ String.format("%.4f", getAbortRate()) + "]";
+	}
+}
@@ -0,0 +1,34 @@
+package com.miw.persistence.book;
+
+/**
+ * Estrategia que usa BookDAO para modificar el stock de un libro.
+ */
+public enum StockUpdateStrategy {
+
+	/**
+	 * Lee el libro con bloqueo PESSIMISTIC_WRITE, calcula el stock en Java y hace
+	 * merge. Mantiene el bloqueo de la fila durante dos viajes a la BD. Con HSQLDB
+	 * embebido (MVCC) SELECT ... FOR UPDATE no bloquea a otro escritor, asi que la
+	 * fila se bloquea antes con un UPDATE que no cambia nada (un viaje mas).
+	 */
+	PESSIMISTIC_LOCK,
+
+	/**
+	 * Un unico UPDATE ... WHERE stock >= :q; el numero de filas afectadas indica
+	 * si habia stock suficiente.
+	 */
+	CONDITIONAL_UPDATE,
+
+	/**
+	 * Sin bloqueos: lee el libro y confia en el @Version de Book para detectar
+	 * escrituras concurrentes, reintentando con espera aleatoria (ver
+	 * OptimisticStockUpdater). Adecuado para libros con poca contencion.
+	 */
+	OPTIMISTIC,
+
+	/**
+	 * El stock vive en memoria (InventoryLedger) y se escribe en la BD por lotes
+	 * cada cierto tiempo. Solo vale con una unica instancia de la aplicacion.
+	 */
+	LEDGER
+}
@@ -0,0 +1,191 @@
+package com.miw.persistence.cart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.*;
+
+/**
+ * Cache delante de otro CartStore (delegate).
+ *
+ * Lecturas: los ultimos maxEntries carritos leidos o escritos se guardan en
+ * memoria (LRU); solo los que no estan se leen del delegate.
+ *
+ * Escrituras: put y remove solo apuntan el ultimo valor del usuario en
+ * pending; un hilo lo escribe en el delegate cada flushIntervalMillis, de modo
+ * que varios cambios seguidos del mismo carrito (una rafaga de "anadir al
+ * carrito") son una sola escritura. Lo pendiente se escribe tambien al parar.
+ * Con flushIntervalMillis = 0 se escribe en cada llamada.
+ */
+public class CachingCartStore implements CartStore {
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	// Marca de remove en pending (los carritos nunca son un array vacio)
+	private static final byte[] REMOVED = new byte[0];
+
+	private CartStore delegate;
+	private int maxEntries = 10000;
+	private long flushIntervalMillis = 500;
+
+	// Acceso con el cerrojo del propio mapa
+	private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	// Ultimo valor aun no escrito en el delegate de cada usuario
+	private final ConcurrentMap<String, byte[]> pending = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	// Se configura desde XML
+	public void setDelegate(CartStore delegate) {
+		this.delegate = delegate;
+	}
+
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	public void start() {
+		if (flushIntervalMillis <= 0 || scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "cart-store-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			scheduler = null;
+		}
+		flushQuietly();
+	}
+
+	@Override
+	public byte[] get(String username) {
+		byte[] cart = pending.get(username);
+		if (cart != null) {
+			hits.incrementAndGet();
+			return cart == REMOVED ? null : cart;
+		}
+		synchronized (cache) {
+			cart = cache.get(username);
+		}
+		if (cart != null) {
+			hits.incrementAndGet();
+			return cart;
+		}
+
+		misses.incrementAndGet();
+		cart = delegate.get(username);
+		if (cart != null) {
+			synchronized (cache) {
+				// Si entre tanto se ha escrito, gana lo escrito
+				cache.putIfAbsent(username, cart);
+			}
+		}
+		return cart;
+	}
+
+	@Override
+	public void put(String username, byte[] cart) {
+		synchronized (cache) {
+			cache.put(username, cart);
+		}
+		write(username, cart);
+	}
+
+	@Override
+	public void remove(String username) {
+		synchronized (cache) {
+			cache.remove(username);
+		}
+		write(username, REMOVED);
+	}
+
+	private void write(String username, byte[] cart) {
+		requests.incrementAndGet();
+		pending.put(username, cart);
+		if (scheduler == null) {
+			flushQuietly();
+		}
+	}
+
+	/**
+	 * Escribe en el delegate lo pendiente: un put o remove por usuario.
+	 */
+	public synchronized void flush() {
+		for (Map.Entry<String, byte[]> e : pending.entrySet()) {
+			String username = e.getKey();
+			byte[] cart = e.getValue();
+			if (cart == REMOVED) {
+				delegate.remove(username);
+			} else {
+				delegate.put(username, cart);
+			}
+			writes.incrementAndGet();
+			// Si entre tanto ha cambiado, se queda para la siguiente vuelta
+			pending.remove(username, cart);
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			logger.error("Error writing carts to the store", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		int cached;
+		synchronized (cache) {
+			cached = cache.size();
+		}
+		long requested = requests.get();
+		long written = writes.get();
+		return "CachingCartStore: cached=" + cached
+				+ ", hits=" + hits.get()
+				+ ", misses=" + misses.get()
+				+ ", writeRequests=" + requested
+				+ ", storeWrites=" + written
+				+ ", pending=" + pending.size()
+				+ ", errors=" + errors.get()
+				+ "\n  " + delegate;
+	}
+}
@@ -0,0 +1,17 @@
+package com.miw.persistence.cart;
+
+/**
+ * Almacen de carritos por nombre de usuario. Los valores son los bytes de
+ * Cart.toBytes(); el almacen no los interpreta.
+ *
+ * Las implementaciones son seguras entre hilos.
+ */
+public interface CartStore {
+
+	// Carrito guardado del usuario o null si no tiene
+	byte[] get(String username);
+
+	void put(String username, byte[] cart);
+
+	void remove(String username);
+}
@@ -0,0 +1,37 @@
+package com.miw.persistence.cart;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Carritos en memoria del propio servidor: se pierden al reiniciar y no se
+ * comparten entre nodos (como cuando estaban en la sesion).
+ */
+public class InMemoryCartStore implements CartStore {
+
+	private final ConcurrentMap<String, byte[]> carts = new ConcurrentHashMap<>();
+
+	@Override
+	public byte[] get(String username) {
+		return carts.get(username);
+	}
+
+	@Override
+	public void put(String username, byte[] cart) {
+		carts.put(username, cart);
+	}
+
+	@Override
+	public void remove(String username) {
+		carts.remove(username);
+	}
+
+	@Override
+	public String toString() {
+		long bytes = 0;
+		for (byte[] cart : carts.values()) {
+			bytes += cart.length;
+		}
+		return "InMemoryCartStore: carts=" + carts.size() + ", bytes=" + bytes;
+	}
+}
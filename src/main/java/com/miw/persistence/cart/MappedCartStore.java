@@ -0,0 +1,340 @@
+package com.miw.persistence.cart;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.*;
+
+import com.miw.persistence.DataDirectory;
+
+/**
+ * Carritos en un fichero local proyectado en memoria (MappedByteBuffer) en el
+ * que solo se escribe al final: cada put anade un registro con el carrito
+ * entero y cada remove una lapida. En memoria se guarda un indice usuario ->
+ * ultimo registro, de modo que get lee el carrito directamente del fichero.
+ *
+ * Registro: MAGIC, longitud del usuario (short), longitud del carrito (int,
+ * -1 en las lapidas), usuario en UTF-8, carrito y CRC32 de todo lo anterior
+ * salvo MAGIC. Al arrancar se lee el fichero hasta el primer registro no
+ * valido (una escritura a medias por una caida) y lo que queda detras se
+ * borra.
+ *
+ * Cuando no cabe un registro, si al menos la mitad de lo escrito son registros
+ * viejos o lapidas se compacta: los registros vivos se copian a un fichero
+ * nuevo que sustituye al anterior; si no, se proyecta el doble. Lo escrito
+ * queda en la cache de paginas del sistema y sobrevive a una caida del
+ * proceso; con forceOnWrite cada registro se fuerza a disco. El directorio se
+ * toma de la propiedad de sistema amazin.cart.dir (o del subdirectorio carts de
+ * amazin.data.dir o del directorio por defecto) si no se configura; tiene que
+ * ser absoluto y se comprueba al abrir (ver DataDirectory).
+ */
+public class MappedCartStore implements CartStore {
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	public static final String DIR_PROPERTY = "amazin.cart.dir";
+
+	static final String FILE_NAME = "carts.log";
+	static final String COMPACT_SUFFIX = ".compact";
+
+	static final String DATA_SUBDIRECTORY = "carts";
+
+	private static final int MAGIC = 0x43415254; // "CART"
+	private static final int HEADER = 10; // MAGIC, longitud del usuario y del carrito
+	private static final int TRAILER = 4; // CRC32
+	private static final int TOMBSTONE = -1;
+
+	private Path directory = DataDirectory.resolve(DIR_PROPERTY, DATA_SUBDIRECTORY);
+	private int initialSize = 4 * 1024 * 1024;
+	private boolean forceOnWrite;
+
+	// Todo lo que sigue se usa con el cerrojo del almacen (this)
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int position;
+	private Map<String, Entry> index = new HashMap<>();
+	// Bytes de los registros del indice; el resto de lo escrito es basura
+	private long liveBytes;
+	private final CRC32 crc = new CRC32();
+
+	private long puts;
+	private long removes;
+	private long compactions;
+	private long growths;
+
+	private static class Entry {
+		final int offset;
+		final int keyLength;
+		final int valueLength;
+
+		Entry(int offset, int keyLength, int valueLength) {
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.valueLength = valueLength;
+		}
+
+		int length() {
+			return HEADER + keyLength + valueLength + TRAILER;
+		}
+	}
+
+	// Se configura desde XML
+	public void setDirectory(String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	public void setInitialSize(int initialSize) {
+		this.initialSize = Math.max(4096, initialSize);
+	}
+
+	public void setForceOnWrite(boolean forceOnWrite) {
+		this.forceOnWrite = forceOnWrite;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public synchronized void open() throws IOException {
+		if (buffer != null) {
+			return;
+		}
+		DataDirectory.prepare(directory, DIR_PROPERTY);
+		// Una compactacion a medias no llego a sustituir al fichero
+		Files.deleteIfExists(directory.resolve(FILE_NAME + COMPACT_SUFFIX));
+
+		channel = FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Cart store file too large: " + size + " bytes");
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, (int) size));
+		recover();
+		logger.info("Cart store opened in " + directory + ": " + index.size() + " carts, "
+				+ position + " bytes");
+	}
+
+	public synchronized void close() {
+		if (buffer == null) {
+			return;
+		}
+		try {
+			buffer.force();
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Error closing cart store", e);
+		}
+		buffer = null;
+		channel = null;
+		logger.info("Cart store closed: " + index.size() + " carts");
+	}
+
+	@Override
+	public synchronized byte[] get(String username) {
+		Entry entry = index.get(username);
+		if (entry == null) {
+			return null;
+		}
+		byte[] cart = new byte[entry.valueLength];
+		buffer.get(entry.offset + HEADER + entry.keyLength, cart);
+		return cart;
+	}
+
+	@Override
+	public synchronized void put(String username, byte[] cart) {
+		append(username, cart);
+		puts++;
+	}
+
+	@Override
+	public synchronized void remove(String username) {
+		if (index.containsKey(username)) {
+			append(username, null);
+			removes++;
+		}
+	}
+
+	// cart == null escribe una lapida
+	private void append(String username, byte[] cart) {
+		if (buffer == null) {
+			throw new IllegalStateException("Cart store is not open");
+		}
+		byte[] key = username.getBytes(StandardCharsets.UTF_8);
+		if (key.length > 0xFFFF) {
+			throw new IllegalArgumentException("Username too long for the cart store");
+		}
+		int valueLength = cart == null ? 0 : cart.length;
+		int length = HEADER + key.length + valueLength + TRAILER;
+		ensureRoom(length);
+
+		int offset = position;
+		buffer.putInt(offset, MAGIC);
+		buffer.putShort(offset + 4, (short) key.length);
+		buffer.putInt(offset + 6, cart == null ? TOMBSTONE : cart.length);
+		buffer.put(offset + HEADER, key);
+		if (cart != null) {
+			buffer.put(offset + HEADER + key.length, cart);
+		}
+		buffer.putInt(offset + length - TRAILER, checksum(offset, length));
+		if (forceOnWrite) {
+			buffer.force(offset, length);
+		}
+		position += length;
+
+		if (cart == null) {
+			unindex(username);
+		} else {
+			index(username, new Entry(offset, key.length, valueLength));
+		}
+	}
+
+	private void ensureRoom(int length) {
+		if ((long) position + length <= buffer.capacity()) {
+			return;
+		}
+		try {
+			if (position - liveBytes >= position / 2) {
+				compact(capacityFor(2 * (liveBytes + length)));
+			} else {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacityFor((long) position + length));
+				growths++;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error resizing cart store", e);
+		}
+	}
+
+	private int capacityFor(long needed) {
+		long size = initialSize;
+		while (size < needed) {
+			size <<= 1;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Cart store full");
+		}
+		return (int) size;
+	}
+
+	// Copia los registros vivos a un fichero nuevo y lo pone en lugar del actual
+	private void compact(int size) throws IOException {
+		Path file = directory.resolve(FILE_NAME);
+		Path compacted = directory.resolve(FILE_NAME + COMPACT_SUFFIX);
+
+		Map<String, Entry> moved = new HashMap<>(index.size() * 2);
+		int end = 0;
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			for (Map.Entry<String, Entry> e : index.entrySet()) {
+				Entry entry = e.getValue();
+				target.put(end, buffer, entry.offset, entry.length());
+				moved.put(e.getKey(), new Entry(end, entry.keyLength, entry.valueLength));
+				end += entry.length();
+			}
+			target.force();
+		}
+
+		channel.close();
+		Files.move(compacted, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+		logger.debug("Cart store compacted: " + position + " -> " + end + " bytes");
+		index = moved;
+		position = end;
+		compactions++;
+	}
+
+	private void recover() {
+		position = 0;
+		index.clear();
+		liveBytes = 0;
+		int length;
+		while ((length = validLength(position)) > 0) {
+			int keyLength = buffer.getShort(position + 4) & 0xFFFF;
+			int valueLength = buffer.getInt(position + 6);
+			byte[] key = new byte[keyLength];
+			buffer.get(position + HEADER, key);
+			String username = new String(key, StandardCharsets.UTF_8);
+			if (valueLength == TOMBSTONE) {
+				unindex(username);
+			} else {
+				index(username, new Entry(position, keyLength, valueLength));
+			}
+			position += length;
+		}
+
+		// Lo que haya detras es una escritura a medias: se borra para que no
+		// se confunda con registros escritos despues
+		byte[] zeros = new byte[4096];
+		for (int at = position; at < buffer.capacity(); at += zeros.length) {
+			buffer.put(at, zeros, 0, Math.min(zeros.length, buffer.capacity() - at));
+		}
+	}
+
+	// Longitud del registro que empieza en offset o -1 si no es valido
+	private int validLength(int offset) {
+		int capacity = buffer.capacity();
+		if (offset + HEADER + TRAILER > capacity || buffer.getInt(offset) != MAGIC) {
+			return -1;
+		}
+		int keyLength = buffer.getShort(offset + 4) & 0xFFFF;
+		int valueLength = buffer.getInt(offset + 6);
+		if (valueLength < TOMBSTONE) {
+			return -1;
+		}
+		long length = (long) HEADER + keyLength + Math.max(valueLength, 0) + TRAILER;
+		if (offset + length > capacity) {
+			return -1;
+		}
+		if (checksum(offset, (int) length) != buffer.getInt(offset + (int) length - TRAILER)) {
+			return -1;
+		}
+		return (int) length;
+	}
+
+	private int checksum(int offset, int length) {
+		crc.reset();
+		crc.update(buffer.slice(offset + 4, length - 4 - TRAILER));
+		return (int) crc.getValue();
+	}
+
+	private void index(String username, Entry entry) {
+		Entry old = index.put(username, entry);
+		if (old != null) {
+			liveBytes -= old.length();
+		}
+		liveBytes += entry.length();
+	}
+
+	private void unindex(String username) {
+		Entry old = index.remove(username);
+		if (old != null) {
+			liveBytes -= old.length();
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "MappedCartStore: carts=" + index.size()
+				+ ", liveBytes=" + liveBytes
+				+ ", usedBytes=" + position
+				+ ", fileBytes=" + (buffer == null ? 0 : buffer.capacity())
+				+ ", puts=" + puts
+				+ ", removes=" + removes
+				+ ", compactions=" + compactions
+				+ ", growths=" + growths;
+	}
+}
@@ -0,0 +1,27 @@
+package com.miw.persistence.journal;
+
+/**
+ * Cuando fuerza OrderJournal los registros escritos a disco (fsync).
+ */
+public enum JournalSyncPolicy {
+
+	/**
+	 * Cada append vuelve cuando sus registros estan en disco. Los appends
+	 * concurrentes comparten el mismo fsync (group commit): mientras un hilo
+	 * fuerza el fichero, los demas escriben y el siguiente fsync cubre a todos.
+	 */
+	ALWAYS,
+
+	/**
+	 * Un hilo en segundo plano fuerza el fichero cada syncIntervalMillis; un
+	 * append no espera al disco. Si el sistema cae se pierde como mucho ese
+	 * intervalo.
+	 */
+	INTERVAL,
+
+	/**
+	 * Solo se fuerza al cambiar de segmento y al cerrar; el resto lo decide el
+	 * sistema operativo. Sobrevive a la caida de la JVM, no a la del sistema.
+	 */
+	NONE
+}
@@ -0,0 +1,342 @@
+package com.miw.persistence.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.*;
+
+import com.miw.metrics.Histogram;
+import com.miw.persistence.DataDirectory;
+
+/**
+ * Diario de pedidos: las lineas de cada compra completada se anaden al final
+ * de un fichero proyectado en memoria (MappedByteBuffer), en registros de
+ * tamano fijo (ver OrderRecord), sin pasar por la BD.
+ *
+ * El diario se divide en segmentos de segmentSize bytes
+ * (orders-00000000.journal, orders-00000001.journal...); cuando uno se llena
+ * se fuerza a disco y se abre el siguiente. Al arrancar se continua el ultimo
+ * segmento a partir del ultimo registro valido, de modo que una escritura a
+ * medias por una caida se sobrescribe.
+ *
+ * Cuando se fuerza a disco lo decide syncPolicy (ver JournalSyncPolicy). El
+ * directorio se toma de la propiedad de sistema amazin.journal.dir (o del
+ * subdirectorio journal de amazin.data.dir o del directorio por defecto) si no
+ * se configura; tiene que ser absoluto y se comprueba al abrir (ver
+ * DataDirectory).
+ */
+public class OrderJournal {
+
+	protected Logger logger = LogManager.getLogger(getClass());
+
+	public static final String DIR_PROPERTY = "amazin.journal.dir";
+
+	static final String SEGMENT_PREFIX = "orders-";
+	static final String SEGMENT_SUFFIX = ".journal";
+
+	static final String DATA_SUBDIRECTORY = "journal";
+
+	private Path directory = DataDirectory.resolve(DIR_PROPERTY, DATA_SUBDIRECTORY);
+	private int segmentSize = 64 * 1024 * 1024;
+	private JournalSyncPolicy syncPolicy = JournalSyncPolicy.INTERVAL;
+	private long syncIntervalMillis = 200;
+
+	// Segmento actual; se cambia con el cerrojo del diario (this)
+	private Segment current;
+	private final byte[] encoded = new byte[OrderRecord.SIZE];
+	private long written;
+
+	// Registros ya forzados a disco; se cambia con syncLock
+	private final Object syncLock = new Object();
+	private volatile long synced;
+
+	private ScheduledExecutorService scheduler;
+
+	private final AtomicLong appends = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final Histogram syncTime = new Histogram();
+
+	private static class Segment {
+		final int index;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		int position;
+		// Bytes ya forzados; se cambia con syncLock
+		int syncedPosition;
+
+		Segment(int index, FileChannel channel, MappedByteBuffer buffer, int position) {
+			this.index = index;
+			this.channel = channel;
+			this.buffer = buffer;
+			this.position = position;
+			this.syncedPosition = position;
+		}
+
+		boolean hasRoom() {
+			return position + OrderRecord.SIZE <= buffer.capacity();
+		}
+	}
+
+	// Se configura desde XML
+	public void setDirectory(String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = Math.max(OrderRecord.SIZE, segmentSize / OrderRecord.SIZE * OrderRecord.SIZE);
+	}
+
+	public void setSyncPolicy(JournalSyncPolicy syncPolicy) {
+		this.syncPolicy = syncPolicy;
+	}
+
+	public void setSyncIntervalMillis(long syncIntervalMillis) {
+		this.syncIntervalMillis = syncIntervalMillis;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public synchronized void open() throws IOException {
+		if (current != null) {
+			return;
+		}
+		DataDirectory.prepare(directory, DIR_PROPERTY);
+		List<Path> segments = segments(directory);
+		if (segments.isEmpty()) {
+			current = openSegment(0);
+		} else {
+			current = recover(segments.get(segments.size() - 1));
+		}
+		logger.info("Order journal opened in " + directory + ", segment " + current.index
+				+ " at record " + current.position / OrderRecord.SIZE);
+
+		if (syncPolicy == JournalSyncPolicy.INTERVAL && syncIntervalMillis > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "order-journal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduler.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (current == null) {
+					return;
+				}
+				current.buffer.force();
+				closeQuietly(current);
+				current = null;
+				synced = written;
+			}
+		}
+	}
+
+	/**
+	 * Anade los registros de una compra, juntos y en orden. Con ALWAYS vuelve
+	 * cuando ya estan en disco.
+	 */
+	public void append(List<OrderRecord> records) throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+		long upTo;
+		try {
+			synchronized (this) {
+				if (current == null) {
+					throw new IOException("Order journal is closed");
+				}
+				for (OrderRecord record : records) {
+					if (!current.hasRoom()) {
+						rotate();
+					}
+					record.encode(encoded);
+					current.buffer.put(current.position, encoded);
+					current.position += OrderRecord.SIZE;
+				}
+				written += records.size();
+				upTo = written;
+			}
+			appends.incrementAndGet();
+
+			if (syncPolicy == JournalSyncPolicy.ALWAYS) {
+				sync(upTo);
+			}
+		} catch (IOException | RuntimeException e) {
+			errors.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Fuerza a disco todo lo escrito hasta ahora.
+	 */
+	public void sync() throws IOException {
+		long upTo;
+		synchronized (this) {
+			upTo = written;
+		}
+		sync(upTo);
+	}
+
+	// Group commit: si mientras se esperaba el cerrojo otro hilo ya forzo estos
+	// registros no hay nada que hacer; si no, se fuerza todo lo escrito hasta
+	// ese momento, incluidos los registros de los hilos que vienen detras
+	private void sync(long upTo) throws IOException {
+		synchronized (syncLock) {
+			if (synced >= upTo) {
+				return;
+			}
+			Segment segment;
+			int from;
+			int to;
+			long target;
+			synchronized (this) {
+				if (current == null) {
+					return; // close() ya lo forzo
+				}
+				segment = current;
+				from = segment.syncedPosition;
+				to = segment.position;
+				target = written;
+			}
+
+			// Los segmentos anteriores se forzaron al cambiar de segmento
+			long start = System.nanoTime();
+			if (to > from) {
+				segment.buffer.force(from, to - from);
+			}
+			segment.syncedPosition = to;
+			synced = target;
+			syncs.incrementAndGet();
+			syncTime.recordNanos(System.nanoTime() - start);
+		}
+	}
+
+	private void syncQuietly() {
+		try {
+			sync();
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			logger.error("Error syncing the order journal", e);
+		}
+	}
+
+	// Con el cerrojo del diario
+	private void rotate() throws IOException {
+		Segment full = current;
+		full.buffer.force();
+		closeQuietly(full);
+		current = openSegment(full.index + 1);
+		logger.debug("Order journal rotated to segment " + current.index);
+	}
+
+	private Segment openSegment(int index) throws IOException {
+		FileChannel channel = FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		return new Segment(index, channel, buffer, 0);
+	}
+
+	// Reabre el ultimo segmento y busca el final de los registros validos
+	private Segment recover(Path path) throws IOException {
+		int index = segmentIndex(path);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = Math.max(channel.size(), segmentSize);
+		size = Math.min(size, Integer.MAX_VALUE) / OrderRecord.SIZE * OrderRecord.SIZE;
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+		byte[] scratch = new byte[OrderRecord.SIZE];
+		int position = 0;
+		while (OrderRecord.decode(buffer, position, scratch) != null) {
+			position += OrderRecord.SIZE;
+		}
+		Segment segment = new Segment(index, channel, buffer, position);
+		if (!segment.hasRoom()) {
+			closeQuietly(segment);
+			return openSegment(index + 1);
+		}
+		return segment;
+	}
+
+	private void closeQuietly(Segment segment) {
+		try {
+			segment.channel.close();
+		} catch (IOException e) {
+			logger.warn("Error closing journal segment " + segment.index, e);
+		}
+	}
+
+	/**
+	 * Segmentos del diario en orden.
+	 */
+	static List<Path> segments(Path directory) throws IOException {
+		if (!Files.isDirectory(directory)) {
+			return Collections.emptyList();
+		}
+		List<Path> segments = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.filter(OrderJournal::isSegment).forEach(segments::add);
+		}
+		segments.sort((a, b) -> Integer.compare(segmentIndex(a), segmentIndex(b)));
+		return segments;
+	}
+
+	private static boolean isSegment(Path path) {
+		String name = path.getFileName().toString();
+		return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+	}
+
+	private static int segmentIndex(Path path) {
+		String name = path.getFileName().toString();
+		return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static Path segmentPath(Path directory, int index) {
+		return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+	}
+
+	public long getWritten() {
+		synchronized (this) {
+			return written;
+		}
+	}
+
+	public long getSynced() {
+		return synced;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderJournal [directory=" + directory + ", syncPolicy=" + syncPolicy + ", records=" + getWritten()
+				+ ", synced=" + getSynced() + ", appends=" + appends.get() + ", syncs=" + syncs.get() + ", errors="
+				+ errors.get() + ", sync: " + syncTime + "]";
+	}
+}
@@ -0,0 +1,90 @@
+package com.miw.persistence.journal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Recorre los registros del diario de pedidos en el orden en que se
+ * escribieron, segmento a segmento. Cada segmento se proyecta en memoria en
+ * solo lectura y se lee hasta el primer registro no valido.
+ *
+ * Se puede usar con el diario abierto: lo escrito despues de abrir el
+ * segmento puede no verse.
+ *
+ * <pre>
+ * try (OrderJournalReader reader = new OrderJournalReader(dir)) {
+ *     while (reader.hasNext()) {
+ *         OrderRecord record = reader.next();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ */
+public class OrderJournalReader implements Iterator<OrderRecord>, AutoCloseable {
+
+	private final List<Path> segments;
+	private int nextSegment;
+
+	private MappedByteBuffer buffer;
+	private int position;
+	private final byte[] scratch = new byte[OrderRecord.SIZE];
+	private OrderRecord next;
+
+	public OrderJournalReader(Path directory) throws IOException {
+		this.segments = OrderJournal.segments(directory);
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null) {
+			if (buffer != null) {
+				next = OrderRecord.decode(buffer, position, scratch);
+				if (next != null) {
+					position += OrderRecord.SIZE;
+					break;
+				}
+			}
+			if (nextSegment == segments.size()) {
+				buffer = null;
+				return false;
+			}
+			openSegment(segments.get(nextSegment++));
+		}
+		return true;
+	}
+
+	@Override
+	public OrderRecord next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		OrderRecord record = next;
+		next = null;
+		return record;
+	}
+
+	private void openSegment(Path path) {
+		// La proyeccion sigue siendo valida despues de cerrar el canal
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = Math.min(channel.size(), Integer.MAX_VALUE);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			position = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Error reading journal segment " + path, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		buffer = null;
+		next = null;
+		nextSegment = segments.size();
+	}
+}
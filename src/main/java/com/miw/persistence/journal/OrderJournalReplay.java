@@ -0,0 +1,93 @@
+package com.miw.persistence.journal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.miw.persistence.DataDirectory;
+
+/**
+ * Reconstruye las ventas de cada libro leyendo el diario de pedidos de
+ * principio a fin.
+ *
+ * Desde la linea de comandos:
+ *
+ * <pre>
+ * java com.miw.persistence.journal.OrderJournalReplay [directorio]
+ * </pre>
+ */
+public class OrderJournalReplay {
+
+	/**
+	 * Contadores de ventas de un libro.
+	 */
+	public static class BookSales {
+		private long lines;
+		private long units;
+		private long reservedUnits;
+		private double revenue;
+
+		void add(OrderRecord record) {
+			lines++;
+			units += record.getQuantity();
+			if (record.isReserved()) {
+				reservedUnits += record.getQuantity();
+			}
+			revenue += record.getQuantity() * record.getUnitPrice();
+		}
+
+		public long getLines() {
+			return lines;
+		}
+
+		public long getUnits() {
+			return units;
+		}
+
+		public long getReservedUnits() {
+			return reservedUnits;
+		}
+
+		public double getRevenue() {
+			return revenue;
+		}
+	}
+
+	/**
+	 * Ventas por id de libro, ordenadas por id.
+	 */
+	public static Map<Integer, BookSales> salesByBook(Path directory) throws IOException {
+		Map<Integer, BookSales> sales = new TreeMap<>();
+		try (OrderJournalReader reader = new OrderJournalReader(directory)) {
+			while (reader.hasNext()) {
+				OrderRecord record = reader.next();
+				sales.computeIfAbsent(record.getBookId(), id -> new BookSales()).add(record);
+			}
+		}
+		return sales;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path directory = args.length > 0 ? Paths.get(args[0])
+				: DataDirectory.resolve(OrderJournal.DIR_PROPERTY, OrderJournal.DATA_SUBDIRECTORY);
+		Map<Integer, BookSales> sales = salesByBook(directory);
+
+		long lines = 0;
+		long units = 0;
+		double revenue = 0;
+		System.out.println("bookId,lines,units,reservedUnits,revenue");
+		for (Map.Entry<Integer, BookSales> e : sales.entrySet()) {
+			BookSales s = e.getValue();
+			System.out.println(e.getKey() + "," + s.getLines() + "," + s.getUnits() + "," + s.getReservedUnits()
+					+ "," + String.format(Locale.ROOT, "%.2f", s.getRevenue()));
+			lines += s.getLines();
+			units += s.getUnits();
+			revenue += s.getRevenue();
+		}
+		System.err.println(sales.size() + " books, " + lines + " lines, " + units + " units, revenue "
+				+ String.format(Locale.ROOT, "%.2f", revenue));
+	}
+}
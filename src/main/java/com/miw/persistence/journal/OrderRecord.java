@@ -0,0 +1,142 @@
+package com.miw.persistence.journal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Una linea de una compra completada, tal como se guarda en el diario de
+ * pedidos.
+ *
+ * En disco ocupa siempre SIZE bytes:
+ *
+ * <pre>
+ *  0  int     MAGIC
+ *  4  long    timestamp (ms desde epoch)
+ * 12  int     bookId
+ * 16  int     quantity
+ * 20  double  unitPrice
+ * 28  byte    flags (bit 0: venia de una reserva)
+ * 29  byte    longitud del usuario en bytes
+ * 30  byte[30] usuario en UTF-8, recortado si no cabe
+ * 60  int     CRC32 de los bytes 0..59
+ * </pre>
+ */
+public class OrderRecord {
+
+	public static final int SIZE = 64;
+
+	static final int MAGIC = 0x4F524431; // "ORD1"
+	static final int MAX_USER_BYTES = 30;
+
+	private static final int CRC_OFFSET = 60;
+	private static final int FLAG_RESERVED = 1;
+
+	private final String username;
+	private final int bookId;
+	private final int quantity;
+	private final double unitPrice;
+	private final long timestamp;
+	private final boolean reserved;
+
+	public OrderRecord(String username, int bookId, int quantity, double unitPrice, long timestamp,
+			boolean reserved) {
+		this.username = username;
+		this.bookId = bookId;
+		this.quantity = quantity;
+		this.unitPrice = unitPrice;
+		this.timestamp = timestamp;
+		this.reserved = reserved;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public int getBookId() {
+		return bookId;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public double getUnitPrice() {
+		return unitPrice;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isReserved() {
+		return reserved;
+	}
+
+	/**
+	 * Escribe el registro en los SIZE bytes de out a partir de su posicion.
+	 */
+	void encode(byte[] out) {
+		ByteBuffer b = ByteBuffer.wrap(out);
+		b.putInt(MAGIC);
+		b.putLong(timestamp);
+		b.putInt(bookId);
+		b.putInt(quantity);
+		b.putDouble(unitPrice);
+		b.put((byte) (reserved ? FLAG_RESERVED : 0));
+
+		byte[] user = userBytes(username);
+		b.put((byte) user.length);
+		b.put(user);
+		while (b.position() < CRC_OFFSET) {
+			b.put((byte) 0);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(out, 0, CRC_OFFSET);
+		b.putInt((int) crc.getValue());
+	}
+
+	/**
+	 * Lee el registro que empieza en offset, o devuelve null si ahi no hay un
+	 * registro completo (final del segmento o escritura a medias).
+	 */
+	static OrderRecord decode(ByteBuffer in, int offset, byte[] scratch) {
+		if (offset + SIZE > in.limit() || in.getInt(offset) != MAGIC) {
+			return null;
+		}
+		in.get(offset, scratch, 0, SIZE);
+		CRC32 crc = new CRC32();
+		crc.update(scratch, 0, CRC_OFFSET);
+		ByteBuffer b = ByteBuffer.wrap(scratch);
+		if (b.getInt(CRC_OFFSET) != (int) crc.getValue()) {
+			return null;
+		}
+
+		int userLength = Math.min(b.get(29), MAX_USER_BYTES);
+		String user = new String(scratch, 30, userLength, StandardCharsets.UTF_8);
+		return new OrderRecord(user, b.getInt(12), b.getInt(16), b.getDouble(20), b.getLong(4),
+				(b.get(28) & FLAG_RESERVED) != 0);
+	}
+
+	// UTF-8 recortado sin partir ningun caracter
+	private static byte[] userBytes(String username) {
+		byte[] bytes = (username == null ? "" : username).getBytes(StandardCharsets.UTF_8);
+		if (bytes.length <= MAX_USER_BYTES) {
+			return bytes;
+		}
+		int length = MAX_USER_BYTES;
+		while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		byte[] cut = new byte[length];
+		System.arraycopy(bytes, 0, cut, 0, length);
+		return cut;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderRecord [username=" + username + ", bookId=" + bookId + ", quantity=" + quantity
+				+ ", unitPrice=" + unitPrice + ", timestamp=" + timestamp + ", reserved=" + reserved + "]";
+	}
+}
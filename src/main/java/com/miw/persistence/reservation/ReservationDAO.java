@@ -1,34 +1,80 @@
 package com.miw.persistence.reservation;
 
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
 import org.apache.logging.log4j.*;
 import com.miw.model.Book;
 import com.miw.model.Reservation;
 import com.miw.persistence.Dba;
+import com.miw.persistence.RowHandler;
+import com.miw.persistence.book.BookDataService;
+import jakarta.persistence.CacheRetrieveMode;
+import jakarta.persistence.CacheStoreMode;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.TypedQuery;
+import org.hibernate.Session;
 
 public class ReservationDAO implements ReservationDataService {
     
     Logger logger = LogManager.getLogger(this.getClass());
     
+    // Filas por viaje al cursor JDBC y cada cuantas filas se vacia el contexto de persistencia
+    private static final int STREAM_FETCH_SIZE = 500;
+    
+    // Ids por cada consulta "where id in (...)"
+    private static final int IN_CHUNK_SIZE = 500;
+    
+    // Pasadas de removeReservations sobre las reservas que cambian mientras se borran
+    private static final int MAX_REMOVE_ATTEMPTS = 3;
+    
+    private BookDataService bookDataService;
+    
+    // Se configura desde XML (devolucion de stock en la misma transaccion)
+    public void setBookDataService(BookDataService bookDataService) {
+        this.bookDataService = bookDataService;
+    }
+    
     @Override
-    public Reservation createReservation(String username, int bookId, int quantity) throws Exception {
-        logger.debug("Creating reservation for book: " + bookId + ", user: " + username);
+    public Reservation reserve(String username, int bookId, int quantity) throws Exception {
+        logger.debug("Reserving " + quantity + " units of book " + bookId + " for user " + username);
         
         Dba dba = new Dba();
         try {
             EntityManager em = dba.getActiveEm();
             
-            // Obtener el Book en el MISMO contexto de persistencia
-            Book book = em.find(Book.class, bookId);
-            if (book == null) {
-                throw new Exception("Book not found: " + bookId);
+            // 1. Descontar el stock: bloquea la fila del libro hasta el commit, asi que dos
+            //    reservas del mismo libro se ejecutan una detras de otra
+            if (!bookDataService.reduceStocks(em, Map.of(bookId, quantity))) {
+                dba.markRollback();
+                return null;
+            }
+            
+            // 2. Sumar a la reserva que ya exista o crear una nueva
+            List<Reservation> existing = em.createQuery(
+                "SELECT r FROM Reservation r JOIN FETCH r.book WHERE r.username = :username AND r.book.id = :bookId", 
+                Reservation.class
+            )
+                .setParameter("username", username)
+                .setParameter("bookId", bookId)
+                .setMaxResults(1)
+                .getResultList();
+            
+            if (!existing.isEmpty()) {
+                Reservation reservation = existing.get(0);
+                addQuantity(em, reservation, quantity);
+                logger.debug("Reservation " + reservation.getId() + " increased to " + reservation.getQuantity());
+                return reservation;
             }
             
-            // Crear la reserva con el Book obtenido en este contexto
             Reservation reservation = new Reservation();
-            reservation.setBook(book);
+            reservation.setBook(em.find(Book.class, bookId));
             reservation.setUsername(username);
             reservation.setQuantity(quantity);
             reservation.setReservationDate(java.time.LocalDateTime.now());
@@ -38,12 +84,62 @@ public class ReservationDAO implements ReservationDataService {
             return reservation;
         } catch (Exception e) {
             logger.error("Error creating reservation", e);
+            dba.markRollback();
             throw new Exception("Error creating reservation", e);
         } finally {
             dba.closeEm();
         }
     }
     
+    @Override
+    public Reservation addToReservation(int reservationId, int quantity) throws Exception {
+        logger.debug("Adding " + quantity + " units to reservation: " + reservationId);
+        
+        Dba dba = new Dba();
+        try {
+            EntityManager em = dba.getActiveEm();
+            
+            Reservation reservation = em.find(Reservation.class, reservationId);
+            if (reservation == null) {
+                logger.warn("Reservation not found: " + reservationId);
+                return null;
+            }
+            
+            // Primero el libro y despues la reserva, en el mismo orden que reserve()
+            if (!bookDataService.reduceStocks(em, Map.of(reservation.getBook().getId(), quantity))
+                    || !addQuantity(em, reservation, quantity)) {
+                dba.markRollback();
+                return null;
+            }
+            
+            logger.debug("Reservation updated successfully. New quantity: " + reservation.getQuantity());
+            return reservation;
+        } catch (Exception e) {
+            logger.error("Error updating reservation", e);
+            dba.markRollback();
+            throw new Exception("Error updating reservation", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    // Suma en la BD (no sobre la cantidad leida, que puede estar anticuada) y relee la
+    // reserva; false si entretanto se ha borrado. La fecha pasa a ser la de ahora: la
+    // caducidad cuenta desde la ultima ampliacion
+    private boolean addQuantity(EntityManager em, Reservation reservation, int quantity) {
+        int updated = em.createQuery("UPDATE Reservation r SET r.quantity = r.quantity + :quantity, "
+                + "r.reservationDate = :now WHERE r.id = :id")
+            .setParameter("quantity", quantity)
+            .setParameter("now", java.time.LocalDateTime.now())
+            .setParameter("id", reservation.getId())
+            .executeUpdate();
+        if (updated == 0) {
+            return false;
+        }
+        em.refresh(reservation);
+        return true;
+    }
+    
     @Override
     public List<Reservation> getReservationsByUsername(String username) throws Exception {
         logger.debug("Getting reservations for user: " + username);
@@ -53,7 +149,7 @@ public class ReservationDAO implements ReservationDataService {
             EntityManager em = dba.getActiveEm();
             
             TypedQuery<Reservation> query = em.createQuery(
-                "SELECT r FROM Reservation r WHERE r.username = :username ORDER BY r.reservationDate DESC", 
+                "SELECT r FROM Reservation r JOIN FETCH r.book WHERE r.username = :username ORDER BY r.reservationDate DESC", 
                 Reservation.class
             );
             query.setParameter("username", username);
@@ -98,20 +194,51 @@ public class ReservationDAO implements ReservationDataService {
     }
     
     @Override
-    public void deleteReservation(int id) throws Exception {
+    public Reservation getReservationByUserAndBook(String username, int bookId) throws Exception {
+        logger.debug("Getting reservation for user: " + username + ", book: " + bookId);
+        
+        Dba dba = new Dba(true); // Solo lectura
+        try {
+            EntityManager em = dba.getActiveEm();
+            
+            // Usa el indice IDX_RESERVATION_USER_BOOK
+            List<Reservation> results = em.createQuery(
+                "SELECT r FROM Reservation r JOIN FETCH r.book WHERE r.username = :username AND r.book.id = :bookId", 
+                Reservation.class
+            )
+                .setParameter("username", username)
+                .setParameter("bookId", bookId)
+                .setMaxResults(1)
+                .getResultList();
+            
+            return results.isEmpty() ? null : results.get(0);
+        } catch (Exception e) {
+            logger.error("Error getting reservation for user: " + username + ", book: " + bookId, e);
+            throw new Exception("Error getting reservation", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    @Override
+    public int deleteReservation(int id) throws Exception {
         logger.debug("Deleting reservation: " + id);
         
         Dba dba = new Dba();
         try {
             EntityManager em = dba.getActiveEm();
-            Reservation reservation = em.find(Reservation.class, id);
-            if (reservation != null) {
-                em.remove(reservation);
+            // Un solo DELETE: la fila que cuenta es la que se borra, no la que se leyo
+            int deleted = em.createQuery("DELETE FROM Reservation r WHERE r.id = :id")
+                .setParameter("id", id)
+                .executeUpdate();
+            if (deleted > 0) {
                 logger.debug("Reservation deleted successfully");
             } else {
                 logger.warn("Reservation not found: " + id);
             }
+            return deleted;
         } catch (Exception e) {
+            dba.markRollback();
             logger.error("Error deleting reservation", e);
             throw new Exception("Error deleting reservation", e);
         } finally {
@@ -120,32 +247,260 @@ public class ReservationDAO implements ReservationDataService {
     }
     
     @Override
-    public Reservation updateReservation(Reservation reservation) throws Exception {
-        logger.debug("Updating reservation: " + reservation.getId());
+    public long streamReservations(RowHandler<Reservation> handler) throws Exception {
+        logger.debug("Streaming all reservations");
+        long rows = 0;
+        
+        Dba dba = new Dba(true); // Solo lectura
+        try {
+            EntityManager em = dba.getActiveEm();
+            
+            TypedQuery<Reservation> query = em.createQuery(
+                "SELECT r FROM Reservation r JOIN FETCH r.book b JOIN FETCH b.vat ORDER BY r.id", 
+                Reservation.class
+            )
+                .setHint("org.hibernate.fetchSize", STREAM_FETCH_SIZE)
+                .setHint("org.hibernate.readOnly", true)
+                // Una exportacion no debe llenar la cache de segundo nivel
+                .setHint("jakarta.persistence.cache.retrieveMode", CacheRetrieveMode.BYPASS)
+                .setHint("jakarta.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+            
+            try (Stream<Reservation> stream = query.getResultStream()) {
+                for (Reservation reservation : (Iterable<Reservation>) stream::iterator) {
+                    handler.handle(reservation);
+                    if (++rows % STREAM_FETCH_SIZE == 0) {
+                        em.clear();
+                    }
+                }
+            }
+            
+            logger.debug("Streamed " + rows + " reservations");
+            return rows;
+        } catch (Exception e) {
+            logger.error("Error streaming reservations", e);
+            throw new Exception("Error streaming reservations", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    @Override
+    public List<String> expireReservations(Collection<Integer> ids, LocalDateTime reservedBefore) throws Exception {
+        List<String> usernames = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return usernames;
+        }
+        logger.debug("Expiring up to " + ids.size() + " reservations made before " + reservedBefore);
+        
         Dba dba = new Dba();
         try {
             EntityManager em = dba.getActiveEm();
             
-            // Obtener la reserva gestionada por este EntityManager
-            Reservation managed = em.find(Reservation.class, reservation.getId());
-            if (managed == null) {
-                throw new Exception("Reservation not found: " + reservation.getId());
+            // Solo las que siguen existiendo y son anteriores al corte
+            for (Object[] row : removeReservations(em, ids, "reservationDate <=", reservedBefore, true)) {
+                usernames.add((String) row[3]);
             }
             
-            // Actualizar solo el campo quantity (no tocar el Book ni sus cascadas)
-            managed.setQuantity(reservation.getQuantity());
+            logger.debug("Expired " + usernames.size() + " reservations");
+            return usernames;
+        } catch (Exception e) {
+            logger.error("Error expiring reservations", e);
+            dba.markRollback();
+            throw new Exception("Error expiring reservations", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    @Override
+    public int deleteReservations(String username, Collection<Integer> ids) throws Exception {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        logger.debug("Deleting up to " + ids.size() + " reservations of " + username);
+        
+        Dba dba = new Dba();
+        try {
+            EntityManager em = dba.getActiveEm();
+            int deleted = removeReservations(em, ids, "username =", username, false).size();
+            logger.debug("Deleted " + deleted + " reservations");
+            return deleted;
+        } catch (Exception e) {
+            logger.error("Error deleting reservations", e);
+            dba.markRollback();
+            throw new Exception("Error deleting reservations", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    @Override
+    public int cancelReservations(String username, Collection<Integer> ids) throws Exception {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        logger.debug("Cancelling up to " + ids.size() + " reservations of " + username);
+        
+        Dba dba = new Dba();
+        try {
+            EntityManager em = dba.getActiveEm();
+            int cancelled = removeReservations(em, ids, "username =", username, true).size();
+            logger.debug("Cancelled " + cancelled + " reservations");
+            return cancelled;
+        } catch (Exception e) {
+            logger.error("Error cancelling reservations", e);
+            dba.markRollback();
+            throw new Exception("Error cancelling reservations", e);
+        } finally {
+            dba.closeEm();
+        }
+    }
+    
+    @Override
+    public boolean purchaseCart(String username, Map<Integer, Integer> quantities, Collection<Integer> reservedBookIds)
+            throws Exception {
+        return purchaseCarts(quantities, Map.of(username, new ArrayList<>(reservedBookIds)));
+    }
+    
+    @Override
+    public boolean purchaseCarts(Map<Integer, Integer> quantities, Map<String, List<Integer>> reservedBookIds)
+            throws Exception {
+        logger.debug("Purchasing carts: books " + quantities + ", reserved books " + reservedBookIds);
+        
+        Dba dba = new Dba();
+        try {
+            EntityManager em = dba.getActiveEm();
             
-            // Forzar carga del libro para evitar lazy loading issues
-            managed.getBook().getTitle();
+            // 1. Stock de las compras normales: todas las lineas o ninguna
+            if (!bookDataService.reduceStocks(em, quantities)) {
+                dba.markRollback();
+                return false;
+            }
             
-            // El flush automático hará el UPDATE al cerrar la transacción
-            logger.debug("Reservation updated successfully");
-            return managed;
+            // 2. Reservas compradas (su stock ya estaba descontado), buscadas y borradas en
+            //    la misma transaccion: tiene que caer una por cada libro reservado del carrito
+            for (Map.Entry<String, List<Integer>> reserved : reservedBookIds.entrySet()) {
+                String username = reserved.getKey();
+                List<Integer> bookIds = reserved.getValue();
+                if (bookIds.isEmpty()) {
+                    continue;
+                }
+                List<Integer> ids = new ArrayList<>(bookIds.size());
+                for (int from = 0; from < bookIds.size(); from += IN_CHUNK_SIZE) {
+                    ids.addAll(em.createQuery(
+                        "SELECT r.id FROM Reservation r WHERE r.username = :username AND r.book.id IN :bookIds", 
+                        Integer.class
+                    )
+                        .setParameter("username", username)
+                        .setParameter("bookIds", bookIds.subList(from, Math.min(from + IN_CHUNK_SIZE, bookIds.size())))
+                        .getResultList());
+                }
+                int purchased = ids.isEmpty() ? 0 : removeReservations(em, ids, "username =", username, false).size();
+                if (purchased != bookIds.size()) {
+                    logger.warn("Reservations of " + username + " changed before checkout: " + purchased + " of "
+                        + bookIds.size() + " left");
+                    dba.markRollback();
+                    return false;
+                }
+            }
+            logger.debug("Carts purchased");
+            return true;
         } catch (Exception e) {
-            logger.error("Error updating reservation", e);
-            throw new Exception("Error updating reservation", e);
+            logger.error("Error purchasing carts of " + reservedBookIds.keySet(), e);
+            dba.markRollback();
+            throw new Exception("Error purchasing cart", e);
         } finally {
             dba.closeEm();
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Borra, dentro de la transaccion de em, las reservas indicadas que cumplen
+     * "columna operador valor" (p. ej. "username =") y devuelve las filas
+     * (id, libro, cantidad, usuario) que se han borrado de verdad: otra peticion
+     * pudo comprarlas o cancelarlas entre tanto. Con restoreStock su stock vuelve
+     * a los libros, agrupado por libro.
+     *
+     * El DELETE exige ademas la cantidad leida: si entre la SELECT y el DELETE
+     * otra transaccion ha sumado unidades a la reserva (addToReservation), la
+     * fila no se borra con la cantidad vieja, y se vuelve a leer y a intentar
+     * hasta MAX_REMOVE_ATTEMPTS veces. Asi nunca se devuelve menos stock del
+     * que tenia la reserva borrada.
+     *
+     * Sentencias: una SELECT por cada IN_CHUNK_SIZE ids, un lote de DELETE y la
+     * devolucion agrupada de stock, sea cual sea el numero de reservas (salvo
+     * los reintentos, solo de las filas cambiadas).
+     */
+    private List<Object[]> removeReservations(EntityManager em, Collection<Integer> ids, String condition,
+            Object value, boolean restoreStock) throws Exception {
+        List<Object[]> removed = new ArrayList<>();
+        Collection<Integer> pending = ids;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            List<Integer> changed = removeCandidates(em, pending, condition, value, removed);
+            if (!changed.isEmpty() && attempt == MAX_REMOVE_ATTEMPTS) {
+                logger.warn("Reservations changed while being removed, left for later: " + changed);
+                break;
+            }
+            pending = changed;
+        }
+        
+        // Stock agrupado por libro, en la misma transaccion
+        if (restoreStock) {
+            Map<Integer, Integer> restore = new TreeMap<>();
+            for (Object[] row : removed) {
+                restore.merge((Integer) row[1], (Integer) row[2], Integer::sum);
+            }
+            bookDataService.increaseStocks(em, restore);
+            logger.debug("Stock restored: " + restore);
+        }
+        return removed;
+    }
+    
+    // Una pasada de removeReservations: anade a removed las filas borradas y devuelve
+    // los ids de las que siguen existiendo con otra cantidad
+    private List<Integer> removeCandidates(EntityManager em, Collection<Integer> ids, String condition,
+            Object value, List<Object[]> removed) throws Exception {
+        List<Integer> idList = new ArrayList<>(ids);
+        
+        // 1. Candidatas
+        List<Object[]> candidates = new ArrayList<>();
+        for (int from = 0; from < idList.size(); from += IN_CHUNK_SIZE) {
+            candidates.addAll(em.createQuery(
+                "SELECT r.id, r.book.id, r.quantity, r.username FROM Reservation r WHERE r.id IN :ids AND r." + condition + " :value", 
+                Object[].class
+            )
+                .setParameter("ids", idList.subList(from, Math.min(from + IN_CHUNK_SIZE, idList.size())))
+                .setParameter("value", value)
+                .getResultList());
+        }
+        List<Integer> changed = new ArrayList<>();
+        if (candidates.isEmpty()) {
+            return changed;
+        }
+        
+        // 2. Un unico lote de DELETE con la misma condicion y la cantidad leida
+        Object jdbcValue = value instanceof LocalDateTime ? Timestamp.valueOf((LocalDateTime) value) : value;
+        int[][] counts = new int[1][];
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM Reservation WHERE id = ? AND quantity = ? AND " + condition + " ?")) {
+                for (Object[] candidate : candidates) {
+                    delete.setInt(1, (Integer) candidate[0]);
+                    delete.setInt(2, (Integer) candidate[2]);
+                    delete.setObject(3, jdbcValue);
+                    delete.addBatch();
+                }
+                counts[0] = delete.executeBatch();
+            }
+        });
+        for (int i = 0; i < candidates.size(); i++) {
+            if (counts[0][i] > 0) {
+                removed.add(candidates.get(i));
+            } else {
+                // Borrada por otro (desaparece en la siguiente lectura) o con otra cantidad
+                changed.add((Integer) candidates.get(i)[0]);
+            }
+        }
+        return changed;
+    }
+}
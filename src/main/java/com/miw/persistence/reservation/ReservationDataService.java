@@ -1,12 +1,42 @@
 package com.miw.persistence.reservation;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import com.miw.model.Reservation;
+import com.miw.persistence.RowHandler;
 
 public interface ReservationDataService {
-    Reservation createReservation(String username, int bookId, int quantity) throws Exception;
+    // Descuenta el stock y crea la reserva, o suma quantity a la que ya tenga el usuario
+    // para ese libro, en una sola transaccion; null si no hay stock o no existe el libro
+    Reservation reserve(String username, int bookId, int quantity) throws Exception;
     List<Reservation> getReservationsByUsername(String username) throws Exception;
     Reservation getReservationById(int id) throws Exception;
-    void deleteReservation(int id) throws Exception;
-    Reservation updateReservation(Reservation reservation) throws Exception;
+    // Una sola fila por (username, book_id); null si no hay reserva
+    Reservation getReservationByUserAndBook(String username, int bookId) throws Exception;
+    // Devuelve cuantas filas se han borrado: 0 si otra peticion (o la caducidad) ya la borro
+    int deleteReservation(int id) throws Exception;
+    // Descuenta el stock y suma quantity a la reserva en una sola transaccion; null si no
+    // hay stock o la reserva no existe
+    Reservation addToReservation(int reservationId, int quantity) throws Exception;
+    // Recorre todas las reservas en orden de id con memoria constante
+    long streamReservations(RowHandler<Reservation> handler) throws Exception;
+    // Borra las reservas indicadas hechas antes de reservedBefore y devuelve su stock
+    // (agrupado por libro) en una transaccion; devuelve el usuario de cada reserva borrada
+    List<String> expireReservations(Collection<Integer> ids, LocalDateTime reservedBefore) throws Exception;
+    // Borra las reservas indicadas del usuario (compradas: el stock no vuelve) en una
+    // transaccion; devuelve cuantas se han borrado
+    int deleteReservations(String username, Collection<Integer> ids) throws Exception;
+    // Borra las reservas indicadas del usuario y devuelve su stock (agrupado por libro)
+    // en una transaccion; devuelve cuantas se han cancelado
+    int cancelReservations(String username, Collection<Integer> ids) throws Exception;
+    // Checkout en una sola transaccion: descuenta quantities (libro -> unidades) y borra
+    // las reservas del usuario de los libros reservedBookIds; false, sin ningun cambio,
+    // si falta stock o alguno de esos libros ya no tiene reserva (caducada o cancelada)
+    boolean purchaseCart(String username, Map<Integer, Integer> quantities, Collection<Integer> reservedBookIds) throws Exception;
+    // Igual que purchaseCart para varios carritos a la vez, en una sola transaccion: quantities
+    // es la suma de todos y reservedBookIds los libros reservados de cada usuario (un libro
+    // repetido en dos carritos del mismo usuario solo tiene una reserva: falla el lote)
+    boolean purchaseCarts(Map<Integer, Integer> quantities, Map<String, List<Integer>> reservedBookIds) throws Exception;
 }
@@ -43,7 +43,7 @@ public class VATDAO implements VATDataService  {
 			EntityManager em = dba.getActiveEm();
 			
 			resultList = em.createQuery(
-					"SELECT v FROM VAT v WHERE v.taxGroup = ?", VAT.class)
+					"SELECT v FROM VAT v WHERE v.taxGroup = ?1", VAT.class)
 					.setParameter(1, family)
 					.getResultList();
 
@@ -5,15 +5,21 @@ import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
-import jakarta.servlet.ServletContext;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.ModelAndView;
 import jakarta.servlet.http.HttpSession;
+import com.miw.business.bookmanager.BookManagerService;
 import com.miw.business.cartmanager.CartManagerService;
+import com.miw.business.cartmanager.CheckoutMetrics;
+import com.miw.business.cartmanager.CheckoutPipeline;
 import com.miw.business.cartmanager.CartSessionService;
+import com.miw.business.lockmanager.BookLockManager;
 import com.miw.business.reservationmanager.ReservationManagerService;
 import com.miw.model.Cart;
 import com.miw.model.CartItem;
 import com.miw.model.Reservation;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.List;
 import org.apache.logging.log4j.*;
 
@@ -32,24 +38,36 @@ public class CartController {
     private CartSessionService cartSessionService;
     
     @Autowired
-    private ServletContext servletContext;
+    private BookManagerService bookManagerService;
+    
+    @Autowired
+    private BookLockManager bookLockManager;
+    
+    @Autowired
+    private CheckoutPipeline checkoutPipeline;
     
     @RequestMapping("private/addToCart")
     public String addToCart(
             @RequestParam("bookId") int bookId,
             @RequestParam("quantity") int quantity,
+            Principal principal,
             HttpSession session,
             Model model) {
         
+        String username = principal.getName();
+        
+        // El carrito se lee, cambia y guarda con el cerrojo del usuario: otra
+        // peticion suya no puede guardar entre tanto una version anterior
+        BookLockManager.Handle user = bookLockManager.lockUser(username);
         try {
-            // Obtener o crear carrito en sesión
-            Cart cart = cartSessionService.getOrCreateCart(session);
+            // Obtener o crear carrito del usuario
+            Cart cart = cartSessionService.getOrCreateCart(username);
             
             // Añadir libro al carrito
             cartManagerService.addBookToCart(cart, bookId, quantity);
             
-            // Actualizar carrito en sesión
-            cartSessionService.updateCart(session, cart);
+            // Guardar el carrito
+            cartSessionService.updateCart(username, cart);
             
             // Usar clave de internacionalización y volver al catálogo
             session.setAttribute("message", "cart.bookAddedSuccessfully");
@@ -59,32 +77,51 @@ public class CartController {
             // Mostrar error y volver al catálogo
             session.setAttribute("error", "error.general");
             return "redirect:showBooks";
+        } finally {
+            user.close();
         }
     }
     
     @RequestMapping("private/viewCart")
     public String viewCart(Principal principal, HttpSession session, Model model) {
         
+        String username = principal.getName();
+        
+        // La sincronizacion con las reservas puede guardar el carrito
         try {
-            String username = principal.getName();
-            
-            // Obtener carrito de sesión
-            Cart cart = cartSessionService.getOrCreateCart(session);
-            
-            // Obtener reservas de BD
-            List<Reservation> reservations = reservationManagerService.getReservations(username);
+            BookLockManager.Handle user = bookLockManager.lockUser(username);
+            try {
+                // Obtener carrito del usuario
+                Cart cart = cartSessionService.getOrCreateCart(username);
             
-            // Sincronizar usando servicio de negocio
-            cartManagerService.synchronizeCartWithReservations(cart, reservations);
+                // Las reservas solo se leen si han cambiado desde la ultima sincronizacion;
+                // la version se toma antes de leerlas para no perder un cambio simultaneo
+                long version = reservationManagerService.getReservationVersion(username);
+                if (cart.getReservationVersion() != version) {
+                    // Obtener reservas de BD
+                    List<Reservation> reservations = reservationManagerService.getReservations(username);
+                
+                    // Sincronizar usando servicio de negocio
+                    cartManagerService.synchronizeCartWithReservations(cart, reservations);
+                    cart.setReservationVersion(version);
+                
+                    // Guardar el carrito después de sincronizar
+                    cartSessionService.updateCart(username, cart);
+                }
             
-            // Actualizar carrito en sesión después de sincronizar
-            cartSessionService.updateCart(session, cart);
+                // Titulo y autor de las lineas (el almacen solo guarda los numeros)
+                cartManagerService.loadBookDetails(cart);
             
-            model.addAttribute("cart", cart);
-            model.addAttribute("total", cart.getTotal());
+                // Stock de todas las lineas en una sola lectura (marca "sin stock")
+                model.addAttribute("availability", bookManagerService.getCartAvailability(cart));
             
-            return "private/viewCart";
+                model.addAttribute("cart", cart);
+                model.addAttribute("total", cart.getTotal());
             
+                return "private/viewCart";
+            } finally {
+                user.close();
+            }
         } catch (Exception e) {
             model.addAttribute("error", "error.general");
             return "private/error";
@@ -98,20 +135,21 @@ public class CartController {
             HttpSession session,
             Model model) {
         
-        synchronized (servletContext) {
+        String username = principal.getName();
+        
+        // El carrito del usuario y solo el libro afectado
+        BookLockManager.Handle user = bookLockManager.lockUser(username);
+        try {
+            BookLockManager.Handle lock = bookLockManager.lock(bookId);
             try {
-                Cart cart = cartSessionService.getOrCreateCart(session);
+                Cart cart = cartSessionService.getOrCreateCart(username);
                 
                 // Buscar el item
-                CartItem itemToRemove = cart.getItems().stream()
-                    .filter(item -> item.getBookId() == bookId)
-                    .findFirst()
-                    .orElse(null);
+                CartItem itemToRemove = cart.findItem(bookId);
                 
                 if (itemToRemove != null) {
                     // Si es reserva, cancelarla en BD (restaura stock)
                     if (itemToRemove.isReserved()) {
-                        String username = principal.getName();
                         boolean cancelled = reservationManagerService.cancelReservationByUserAndBook(username, bookId);
                         
                         if (!cancelled) {
@@ -122,8 +160,8 @@ public class CartController {
                     // Quitar del carrito usando servicio
                     cartSessionService.removeItemFromCart(cart, bookId, itemToRemove.isReserved());
                     
-                    // Actualizar carrito en sesión
-                    cartSessionService.updateCart(session, cart);
+                    // Guardar el carrito
+                    cartSessionService.updateCart(username, cart);
                     
                     model.addAttribute("message", "cart.itemRemoved");
                 }
@@ -133,45 +171,55 @@ public class CartController {
             } catch (Exception e) {
                 model.addAttribute("error", "error.general");
                 return "redirect:viewCart";
+            } finally {
+                lock.close();
             }
+        } finally {
+            user.close();
         }
     }
     
     @RequestMapping("private/clearCart")
     public String clearCart(Principal principal, HttpSession session, Model model) {
         
-        synchronized (servletContext) {
+        String username = principal.getName();
+        
+        // Primero el usuario: los libros se toman del carrito leido con su
+        // cerrojo, que nadie puede cambiar hasta soltarlo
+        try {
+            BookLockManager.Handle user = bookLockManager.lockUser(username);
             try {
-                Cart cart = cartSessionService.getOrCreateCart(session);
-                
-                if (!cart.isEmpty()) {
-                    String username = principal.getName();
-                    
-                    // Cancelar reservas antes de vaciar
-                    for (CartItem item : cart.getItems()) {
-                        if (item.isReserved()) {
-                            reservationManagerService.cancelReservationByUserAndBook(username, item.getBookId());
-                        }
-                    }
+                Cart cart = cartSessionService.getOrCreateCart(username);
+            
+                // Se bloquean todos los libros del carrito, en orden
+                BookLockManager.Handle lock = bookLockManager.lockAll(bookIds(cart));
+                try {
+                    if (!cart.isEmpty()) {
+                        // Cancelar reservas antes de vaciar (todas en una transaccion)
+                        reservationManagerService.cancelReservationsInCart(username, cart);
                     
-                    // Vaciar el carrito
-                    cart.clear();
+                        // Vaciar el carrito
+                        cart.clear();
                     
-                    // Actualizar carrito en sesión
-                    cartSessionService.updateCart(session, cart);
+                        // Guardar el carrito
+                        cartSessionService.updateCart(username, cart);
                     
-                    model.addAttribute("message", "cart.cartCleared");
-                }
+                        model.addAttribute("message", "cart.cartCleared");
+                    }
                 
-                model.addAttribute("cart", cart);
-                model.addAttribute("total", cart.getTotal());
+                    model.addAttribute("cart", cart);
+                    model.addAttribute("total", cart.getTotal());
                 
-                return "private/viewCart";
-                
-            } catch (Exception e) {
-                model.addAttribute("error", "error.general");
-                return "private/viewCart";
+                    return "private/viewCart";
+                } finally {
+                    lock.close();
+                }
+            } finally {
+                user.close();
             }
+        } catch (Exception e) {
+            model.addAttribute("error", "error.general");
+            return "private/viewCart";
         }
     }
     
@@ -182,16 +230,17 @@ public class CartController {
             HttpSession session,
             Model model) {
         
-        synchronized (servletContext) {
+        String username = principal.getName();
+        
+        // El carrito del usuario y solo el libro afectado
+        BookLockManager.Handle user = bookLockManager.lockUser(username);
+        try {
+            BookLockManager.Handle lock = bookLockManager.lock(bookId);
             try {
-                String username = principal.getName();
-                Cart cart = cartSessionService.getOrCreateCart(session);
+                Cart cart = cartSessionService.getOrCreateCart(username);
                 
                 // Buscar el item en el carrito
-                CartItem itemToPurchase = cart.getItems().stream()
-                    .filter(item -> item.getBookId() == bookId)
-                    .findFirst()
-                    .orElse(null);
+                CartItem itemToPurchase = cart.findItem(bookId);
                 
                 if (itemToPurchase == null) {
                     session.setAttribute("error", "cart.itemNotFound");
@@ -223,12 +272,13 @@ public class CartController {
                     }
                     logger.debug("Stock reduced for normal purchase");
                 }
+                cartManagerService.recordPurchase(username, List.of(itemToPurchase));
                 
                 // Quitar el item del carrito usando servicio
                 cartSessionService.removeItemFromCart(cart, bookId, itemToPurchase.isReserved());
                 
-                // Actualizar carrito en sesión
-                cartSessionService.updateCart(session, cart);
+                // Guardar el carrito
+                cartSessionService.updateCart(username, cart);
                 
                 session.setAttribute("message", "cart.itemPurchased");
                 return "redirect:viewCart";
@@ -237,45 +287,116 @@ public class CartController {
                 logger.error("Error purchasing item", e);
                 session.setAttribute("error", "cart.checkoutError");
                 return "redirect:viewCart";
+            } finally {
+                lock.close();
             }
+        } finally {
+            user.close();
         }
     }
     
     @RequestMapping("private/checkout")
-    public String checkout(Principal principal, HttpSession session, Model model) {
+    public DeferredResult<ModelAndView> checkout(Principal principal, HttpSession session) {
         
-        Cart cart = cartSessionService.getOrCreateCart(session);
+        DeferredResult<ModelAndView> result = new DeferredResult<>();
+        String username = principal.getName();
+        Cart cart = cartSessionService.getOrCreateCart(username);
         
         if (cart.isEmpty()) {
-            model.addAttribute("error", "cart.empty");
-            return "private/viewCart";
+            result.setResult(new ModelAndView("private/viewCart", "error", "cart.empty"));
+            return result;
         }
         
-        // SINCRONIZACIÓN USANDO EL CONTEXTO DE LA APLICACIÓN
-        // Esto previene que dos usuarios compren el mismo stock simultáneamente
-        synchronized (servletContext) {
-            try {
-                String username = principal.getName();
-                
-                // Procesar reservas usando servicio de negocio
-                reservationManagerService.processReservationsInCart(username, cart);
-                
-                // Procesar compras normales usando servicio de negocio
-                boolean success = cartManagerService.processNormalPurchases(cart);
-                
-                if (success) {
-                    model.addAttribute("message", "cart.purchaseSuccess");
-                    cartSessionService.clearCart(session);
-                    return "private/checkoutSuccess";
+        // Si ya se ve que falta stock no se toma ningun cerrojo ni se abre una
+        // transaccion de escritura; si lo hay, la compra lo vuelve a comprobar
+        try {
+            if (bookManagerService.getCartAvailability(cart).containsValue(false)) {
+                result.setResult(new ModelAndView("private/viewCart", "error", "cart.someItemsOutOfStock"));
+                return result;
+            }
+        } catch (Exception e) {
+            result.setResult(new ModelAndView("private/error", "error", "cart.checkoutError"));
+            return result;
+        }
+        
+        if (checkoutPipeline.isEnabled()) {
+            // La compra se encola y el hilo de la peticion queda libre; la
+            // respuesta sale cuando el escritor de su cola confirma la compra
+            // El escritor quita del carrito lo comprado
+            DeferredResult<ModelAndView> queued = new DeferredResult<>(checkoutPipeline.getResultTimeoutMillis());
+            // Si tarda demasiado la compra sigue en la cola: no es un error y
+            // repetirla no compra dos veces (lo comprado ya no esta en el carrito)
+            queued.onTimeout(() -> {
+                session.setAttribute("message", "cart.checkoutPending");
+                queued.setResult(new ModelAndView("redirect:viewCart"));
+            });
+            checkoutPipeline.submit(username, cart).whenComplete((success, error) -> {
+                if (error == null) {
+                    queued.setResult(checkoutResult(success));
+                } else if ("cart.changed".equals(error.getMessage())) {
+                    session.setAttribute("error", "cart.changed");
+                    queued.setResult(new ModelAndView("redirect:viewCart"));
                 } else {
-                    model.addAttribute("error", "cart.someItemsOutOfStock");
-                    return "private/viewCart";
+                    logger.error("Error in asynchronous checkout", error);
+                    queued.setResult(new ModelAndView("private/error", "error", "cart.checkoutError"));
                 }
+            });
+            return queued;
+        }
+        
+        long start = System.nanoTime();
+        
+        // Primero el usuario y despues todos los libros del carrito, en orden:
+        // dos compras solo se esperan si son del mismo usuario o comparten algun
+        // libro (o su franja de cerrojos). El carrito se vuelve a leer con el
+        // cerrojo del usuario: es lo que se compra y lo que se vacia
+        try {
+            BookLockManager.Handle user = bookLockManager.lockUser(username);
+            try {
+                cart = cartSessionService.getOrCreateCart(username);
+                if (cart.isEmpty()) {
+                    result.setResult(new ModelAndView("private/viewCart", "error", "cart.empty"));
+                    return result;
+                }
+                BookLockManager.Handle lock = bookLockManager.lockAll(bookIds(cart));
+                try {
+                    // Compras normales y reservas en una sola transaccion: si algo
+                    // falla no se descuenta nada ni se borra ninguna reserva
+                    boolean success = reservationManagerService.purchaseCart(username, cart);
                 
-            } catch (Exception e) {
-                model.addAttribute("error", "cart.checkoutError");
-                return "private/error";
+                    if (success) {
+                        cartManagerService.recordPurchase(username, cart.getItems());
+                    
+                        // Solo lo comprado: lo anadido mientras tanto sigue en el carrito
+                        cartSessionService.removePurchasedItems(username, cart);
+                    }
+                    result.setResult(checkoutResult(success));
+                } finally {
+                    lock.close();
+                }
+            } finally {
+                user.close();
             }
+        } catch (Exception e) {
+            result.setResult(new ModelAndView("private/error", "error", "cart.checkoutError"));
+        } finally {
+            CheckoutMetrics.getInstance().recordSync(System.nanoTime() - start);
+        }
+        return result;
+    }
+    
+    private ModelAndView checkoutResult(boolean success) {
+        if (success) {
+            return new ModelAndView("private/checkoutSuccess", "message", "cart.purchaseSuccess");
+        }
+        return new ModelAndView("private/viewCart", "error", "cart.someItemsOutOfStock");
+    }
+    
+    private static List<Integer> bookIds(Cart cart) {
+        List<Integer> ids = new ArrayList<>(cart.getItems().size());
+        for (CartItem item : cart.getItems()) {
+            ids.add(item.getBookId());
         }
+        return ids;
     }
 }
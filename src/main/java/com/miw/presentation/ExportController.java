@@ -0,0 +1,169 @@
+package com.miw.presentation;
+
+import java.io.PrintWriter;
+
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.miw.business.bookmanager.BookManagerService;
+import com.miw.business.reservationmanager.ReservationManagerService;
+import com.miw.model.Book;
+import com.miw.model.Reservation;
+
+/**
+ * Exportaciones completas del catalogo y de las reservas en CSV o JSON.
+ *
+ * Cada fila se escribe en la respuesta segun llega del cursor de la BD, de modo
+ * que la memoria usada no depende del numero de filas.
+ */
+@Controller
+public class ExportController {
+
+	@Autowired
+	private BookManagerService bookManagerService;
+
+	@Autowired
+	private ReservationManagerService reservationManagerService;
+
+	@PreAuthorize("hasRole('ROLE_MANAGER')")
+	@RequestMapping("private/export/books")
+	public void exportBooks(@RequestParam(value = "format", defaultValue = "csv") String format,
+			HttpServletResponse response) throws Exception {
+		System.out.println("Executing private/export/books controller");
+
+		boolean json = isJson(format);
+		PrintWriter out = open(response, "books", json);
+		if (json) {
+			out.print('[');
+		} else {
+			out.print("id,title,author,description,basePrice,taxGroup,price,stock\r\n");
+		}
+
+		long[] rows = { 0 };
+		bookManagerService.exportBooks(b -> {
+			if (json) {
+				out.print(rows[0] == 0 ? "\n" : ",\n");
+				out.print("{\"id\":" + b.getId() + ",\"title\":" + jsonString(b.getTitle()) + ",\"author\":"
+						+ jsonString(b.getAuthor()) + ",\"description\":" + jsonString(b.getDescription())
+						+ ",\"basePrice\":" + b.getBasePrice() + ",\"taxGroup\":" + taxGroup(b) + ",\"price\":"
+						+ b.getPrice() + ",\"stock\":" + b.getStock() + "}");
+			} else {
+				out.print(b.getId() + "," + csv(b.getTitle()) + "," + csv(b.getAuthor()) + ","
+						+ csv(b.getDescription()) + "," + b.getBasePrice() + "," + taxGroup(b) + "," + b.getPrice()
+						+ "," + b.getStock() + "\r\n");
+			}
+			rows[0]++;
+		});
+
+		if (json) {
+			out.print("\n]\n");
+		}
+		out.flush();
+	}
+
+	@PreAuthorize("hasRole('ROLE_MANAGER')")
+	@RequestMapping("private/export/reservations")
+	public void exportReservations(@RequestParam(value = "format", defaultValue = "csv") String format,
+			HttpServletResponse response) throws Exception {
+		System.out.println("Executing private/export/reservations controller");
+
+		boolean json = isJson(format);
+		PrintWriter out = open(response, "reservations", json);
+		if (json) {
+			out.print('[');
+		} else {
+			out.print("id,username,bookId,title,quantity,reservationDate\r\n");
+		}
+
+		long[] rows = { 0 };
+		reservationManagerService.exportReservations(r -> {
+			Book book = r.getBook();
+			if (json) {
+				out.print(rows[0] == 0 ? "\n" : ",\n");
+				out.print("{\"id\":" + r.getId() + ",\"username\":" + jsonString(r.getUsername()) + ",\"bookId\":"
+						+ book.getId() + ",\"title\":" + jsonString(book.getTitle()) + ",\"quantity\":"
+						+ r.getQuantity() + ",\"reservationDate\":" + jsonString(date(r)) + "}");
+			} else {
+				out.print(r.getId() + "," + csv(r.getUsername()) + "," + book.getId() + "," + csv(book.getTitle())
+						+ "," + r.getQuantity() + "," + csv(date(r)) + "\r\n");
+			}
+			rows[0]++;
+		});
+
+		if (json) {
+			out.print("\n]\n");
+		}
+		out.flush();
+	}
+
+	private static boolean isJson(String format) {
+		return "json".equalsIgnoreCase(format);
+	}
+
+	private static PrintWriter open(HttpServletResponse response, String name, boolean json) throws Exception {
+		response.setCharacterEncoding("UTF-8");
+		response.setContentType(json ? "application/json" : "text/csv");
+		response.setHeader("Content-Disposition",
+				"attachment; filename=\"" + name + (json ? ".json" : ".csv") + "\"");
+		// Sin Content-Length: la respuesta sale por bloques mientras se recorre el cursor
+		return response.getWriter();
+	}
+
+	private static Integer taxGroup(Book book) {
+		return book.getVat() == null ? null : book.getVat().getTaxGroup();
+	}
+
+	private static String date(Reservation reservation) {
+		return reservation.getReservationDate() == null ? null : reservation.getReservationDate().toString();
+	}
+
+	private static String csv(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+				&& value.indexOf('\r') < 0) {
+			return value;
+		}
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String jsonString(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
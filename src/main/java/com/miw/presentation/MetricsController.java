@@ -0,0 +1,52 @@
+package com.miw.presentation;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.miw.business.cartmanager.CartSessionService;
+import com.miw.business.cartmanager.CheckoutMetrics;
+import com.miw.business.lockmanager.BookLockManager;
+import com.miw.business.reservationmanager.ReservationExpiryService;
+import com.miw.business.reservationmanager.ReservationVersions;
+import com.miw.persistence.Dba;
+import com.miw.persistence.QueryCounter;
+import com.miw.persistence.book.StockUpdateMetrics;
+import com.miw.persistence.journal.OrderJournal;
+
+@Controller
+public class MetricsController {
+
+	@Autowired
+	private BookLockManager bookLockManager;
+
+	@Autowired
+	private ReservationExpiryService reservationExpiryService;
+
+	@Autowired
+	private ReservationVersions reservationVersions;
+
+	@Autowired
+	private OrderJournal orderJournal;
+
+	@Autowired
+	private CartSessionService cartSessionService;
+
+	@RequestMapping(value = "private/metrics", produces = "text/plain;charset=UTF-8")
+	@ResponseBody
+	public String metrics() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Dba.getPoolMetrics()).append('\n');
+		sb.append(Dba.getCacheMetrics());
+		sb.append(StockUpdateMetrics.getInstance()).append('\n');
+		sb.append(bookLockManager);
+		sb.append(reservationExpiryService).append('\n');
+		sb.append(reservationVersions).append('\n');
+		sb.append(CheckoutMetrics.getInstance()).append('\n');
+		sb.append(orderJournal).append('\n');
+		sb.append(cartSessionService.getCartStore()).append('\n');
+		sb.append(QueryCounter.report());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,50 @@
+package com.miw.presentation;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.*;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import com.miw.persistence.QueryCounter;
+
+/**
+ * Cuenta las sentencias SQL y transacciones de cada peticion (ver
+ * QueryCounter). Los totales por ruta salen en private/metrics.
+ *
+ * En las peticiones asincronas (checkout con DeferredResult) solo se cuenta el
+ * hilo de la peticion; el trabajo de los hilos del pipeline no.
+ */
+public class QueryCountInterceptor implements AsyncHandlerInterceptor {
+
+	Logger logger = LogManager.getLogger(this.getClass());
+
+	@Override
+	public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+		// El segundo despacho de una peticion asincrona no es otra peticion
+		if (request.getDispatcherType() != DispatcherType.ASYNC) {
+			QueryCounter.begin();
+		}
+		return true;
+	}
+
+	@Override
+	public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response,
+			Object handler) {
+		finish(request);
+	}
+
+	@Override
+	public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+			Exception ex) {
+		finish(request);
+	}
+
+	private void finish(HttpServletRequest request) {
+		String path = request.getServletPath();
+		logger.debug(path + ": " + QueryCounter.getQueries() + " queries in " + QueryCounter.getTransactions()
+				+ " transactions");
+		QueryCounter.end(path);
+	}
+}
@@ -7,10 +7,11 @@ import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
-import jakarta.servlet.ServletContext;
 import jakarta.servlet.http.HttpSession;
+import com.miw.business.cartmanager.CartManagerService;
+import com.miw.business.cartmanager.CartSessionService;
+import com.miw.business.lockmanager.BookLockManager;
 import com.miw.business.reservationmanager.ReservationManagerService;
-import com.miw.model.Cart;
 import com.miw.model.CartItem;
 import com.miw.model.Book;
 import com.miw.model.Reservation;
@@ -22,7 +23,13 @@ public class ReservationController {
     private ReservationManagerService reservationManagerService;
     
     @Autowired
-    private ServletContext servletContext;
+    private BookLockManager bookLockManager;
+    
+    @Autowired
+    private CartManagerService cartManagerService;
+    
+    @Autowired
+    private CartSessionService cartSessionService;
     
     @RequestMapping("private/reserveBook")
     public String reserveBook(
@@ -32,11 +39,13 @@ public class ReservationController {
             HttpSession session,
             Model model) {
         
-        // Sincronización para evitar condiciones de carrera
-        synchronized (servletContext) {
+        String username = principal.getName();
+        
+        // El carrito del usuario y solo el libro reservado
+        BookLockManager.Handle user = bookLockManager.lockUser(username);
+        try {
+            BookLockManager.Handle lock = bookLockManager.lock(bookId);
             try {
-                String username = principal.getName();
-                
                 // Verificar si ya existe una reserva de este libro
                 Reservation existingReservation = reservationManagerService.getReservationByUserAndBook(username, bookId);
                 
@@ -44,26 +53,9 @@ public class ReservationController {
                     // Ya existe una reserva, incrementar cantidad usando el manager
                     Reservation updated = reservationManagerService.incrementReservationQuantity(existingReservation.getId(), quantity);
                     
-                    // Actualizar cantidad en el carrito
-                    Cart cart = (Cart) session.getAttribute("cart");
-                    if (cart != null) {
-                        boolean found = false;
-                        for (CartItem item : cart.getItems()) {
-                            if (item.getBookId() == bookId && item.isReserved()) {
-                                item.setQuantity(updated.getQuantity()); // Usar cantidad actualizada de BD
-                                found = true;
-                                break;
-                            }
-                        }
-                        
-                        // Si no se encontró en el carrito, añadirlo
-                        if (!found) {
-                            CartItem item = new CartItem(updated.getBook(), updated.getQuantity(), true);
-                            cart.getItems().add(item);
-                        }
-                        
-                        session.setAttribute("cart", cart);
-                    }
+                    // Actualizar cantidad en el carrito: la de BD; si no estaba en el carrito, se añade
+                    cartSessionService.modify(username,
+                        cart -> cart.putReservedItem(updated.getBook(), updated.getQuantity()));
                     
                     model.addAttribute("message", "reservation.updated");
                     return "redirect:viewCart";
@@ -73,19 +65,9 @@ public class ReservationController {
                 // 1. Crear reserva en BD (reduce stock)
                 Reservation reservation = reservationManagerService.createReservation(username, bookId, quantity);
                 
-                // 2. Obtener o crear carrito en sesión
-                Cart cart = (Cart) session.getAttribute("cart");
-                if (cart == null) {
-                    cart = new Cart();
-                }
-                
-                // 3. Añadir al carrito con marca de reserva
+                // 2. Añadir al carrito del usuario con marca de reserva (cantidad reservada en BD)
                 Book book = reservation.getBook();
-                CartItem item = new CartItem(book, quantity, true); // isReserved = true
-                cart.getItems().add(item);
-                
-                // 4. Actualizar carrito en sesión
-                session.setAttribute("cart", cart);
+                cartSessionService.modify(username, cart -> cart.putReservedItem(book, reservation.getQuantity()));
                 
                 session.setAttribute("message", "reservation.created");
                 return "redirect:showBooks";
@@ -93,7 +75,11 @@ public class ReservationController {
             } catch (Exception e) {
                 session.setAttribute("error", "error.general");
                 return "redirect:showBooks";
+            } finally {
+                lock.close();
             }
+        } finally {
+            user.close();
         }
     }
     
@@ -122,40 +108,47 @@ public class ReservationController {
             HttpSession session,
             Model model) {
         
-        synchronized (servletContext) {
+        try {
+            String username = principal.getName();
+            
+            // 1. Obtener información de la reserva ANTES de eliminarla
+            Reservation res = reservationManagerService.getReservations(username).stream()
+                .filter(r -> r.getId() == reservationId)
+                .findFirst()
+                .orElse(null);
+            
+            if (res == null) {
+                model.addAttribute("error", "reservation.notFound");
+                return "redirect:myReservations";
+            }
+            
+            int bookId = res.getBook().getId();
+            
+            // El carrito del usuario y solo el libro de la reserva
+            BookLockManager.Handle user = bookLockManager.lockUser(username);
             try {
-                String username = principal.getName();
-                
-                // 1. Obtener información de la reserva ANTES de eliminarla
-                Reservation res = reservationManagerService.getReservations(username).stream()
-                    .filter(r -> r.getId() == reservationId)
-                    .findFirst()
-                    .orElse(null);
-                
-                if (res == null) {
-                    model.addAttribute("error", "reservation.notFound");
-                    return "redirect:myReservations";
+                BookLockManager.Handle lock = bookLockManager.lock(bookId);
+                try {
+                    // 2. Comprar la reserva (eliminar de BD, stock ya reducido)
+                    reservationManagerService.purchaseReservation(reservationId);
+                    cartManagerService.recordPurchase(username,
+                        List.of(new CartItem(res.getBook(), res.getQuantity(), true)));
+                
+                    // 3. Quitar del carrito
+                    cartSessionService.modify(username, cart -> cart.removeItem(bookId));
+                } finally {
+                    lock.close();
                 }
-                
-                int bookId = res.getBook().getId();
-                
-                // 2. Comprar la reserva (eliminar de BD, stock ya reducido)
-                reservationManagerService.purchaseReservation(reservationId);
-                
-                // 3. Quitar del carrito de sesión
-                Cart cart = (Cart) session.getAttribute("cart");
-                if (cart != null) {
-                    cart.removeItem(bookId);
-                    session.setAttribute("cart", cart);
-                }
-                
-                model.addAttribute("message", "reservation.purchased");
-                return "redirect:myReservations";
-                
-            } catch (Exception e) {
-                model.addAttribute("error", "error.general");
-                return "redirect:myReservations";
+            } finally {
+                user.close();
             }
+            
+            model.addAttribute("message", "reservation.purchased");
+            return "redirect:myReservations";
+            
+        } catch (Exception e) {
+            model.addAttribute("error", "error.general");
+            return "redirect:myReservations";
         }
     }
     
@@ -166,33 +159,43 @@ public class ReservationController {
             HttpSession session,
             Model model) {
         
-        synchronized (servletContext) {
+        try {
+            String username = principal.getName();
+            
+            // 1. Obtener info de la reserva antes de cancelar
+            Reservation res = reservationManagerService.getReservations(username).stream()
+                .filter(r -> r.getId() == reservationId)
+                .findFirst()
+                .orElse(null);
+            
+            if (res == null) {
+                model.addAttribute("error", "reservation.notFound");
+                return "redirect:myReservations";
+            }
+            
+            // El carrito del usuario y solo el libro de la reserva
+            BookLockManager.Handle user = bookLockManager.lockUser(username);
             try {
-                String username = principal.getName();
-                
-                // 1. Obtener info de la reserva antes de cancelar
-                Reservation res = reservationManagerService.getReservations(username).stream()
-                    .filter(r -> r.getId() == reservationId)
-                    .findFirst()
-                    .orElse(null);
-                
-                // 2. Cancelar reserva (restaura stock)
-                reservationManagerService.cancelReservation(reservationId);
-                
-                // 3. Quitar del carrito de sesión
-                Cart cart = (Cart) session.getAttribute("cart");
-                if (cart != null && res != null) {
-                    cart.removeItem(res.getBook().getId());
-                    session.setAttribute("cart", cart);
+                BookLockManager.Handle lock = bookLockManager.lock(res.getBook().getId());
+                try {
+                    // 2. Cancelar reserva (restaura stock)
+                    reservationManagerService.cancelReservation(reservationId);
+                
+                    // 3. Quitar del carrito
+                    cartSessionService.modify(username, cart -> cart.removeItem(res.getBook().getId()));
+                } finally {
+                    lock.close();
                 }
-                
-                model.addAttribute("message", "reservation.cancelled");
-                return "redirect:myReservations";
-                
-            } catch (Exception e) {
-                model.addAttribute("error", "error.general");
-                return "redirect:myReservations";
+            } finally {
+                user.close();
             }
+            
+            model.addAttribute("message", "reservation.cancelled");
+            return "redirect:myReservations";
+            
+        } catch (Exception e) {
+            model.addAttribute("error", "error.general");
+            return "redirect:myReservations";
         }
     }
 }
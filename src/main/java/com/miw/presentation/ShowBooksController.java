@@ -4,8 +4,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 
 import com.miw.business.bookmanager.BookManagerService;
+import com.miw.model.BookPage;
+import com.miw.model.BookSort;
 
 @Controller
 public class ShowBooksController {
@@ -14,12 +17,23 @@ public class ShowBooksController {
 	private BookManagerService bookManagerService;
 
 	@RequestMapping("private/showBooks")
-	public String seekBooks(Model model) throws Exception {
+	public String seekBooks(
+			@RequestParam(value = "sort", defaultValue = "id") String sort,
+			@RequestParam(value = "afterId", required = false) Integer afterId,
+			@RequestParam(value = "afterTitle", required = false) String afterTitle,
+			@RequestParam(value = "size", defaultValue = "0") int size,
+			Model model) throws Exception {
 		System.out.println("Executing SeekBooks.");
 
+		// Only one page of the catalog is loaded, whatever its size.
+		BookPage page = bookManagerService.getBooksPage(BookSort.fromParameter(sort), afterId, afterTitle, size);
+
 		// We store the list of books in teh model.
-		model.addAttribute("booklist",
-				bookManagerService.getBooks());
+		model.addAttribute("booklist", page.getBooks());
+		model.addAttribute("page", page);
+		model.addAttribute("sort", sort);
+		// The page size is kept in the paging links (0 = default size).
+		model.addAttribute("size", size);
 		// We return the name of the view. 
 		return "private/showBooks";
 		
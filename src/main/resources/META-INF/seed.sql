@@ -0,0 +1,11 @@
+-- Datos iniciales para los modos embebidos (amazin.db.mode=file|mem).
+-- Solo se ejecuta si la tabla Book esta vacia.
+INSERT INTO VAT (id, taxGroup, value) VALUES (0, 0, 0.16);
+INSERT INTO VAT (id, taxGroup, value) VALUES (1, 1, 0.7);
+INSERT INTO Book (id, title, description, author, taxGroup, basePrice, stock) VALUES (0, 'The Lord of the Rings', 'An epic story about the fight against the evil in the Middle Earth..', 'J.R.R. Tolkien', 0, 15.0, 10);
+INSERT INTO Book (id, title, description, author, taxGroup, basePrice, stock) VALUES (1, 'The Hobbit', 'A short story for children about ...', 'J.R.R. Tolkien', 0, 9.0, 10);
+INSERT INTO Book (id, title, description, author, taxGroup, basePrice, stock) VALUES (2, 'Calculus', 'Oriented to engineering Students', 'Spivak', 1, 20.0, 10);
+INSERT INTO Book (id, title, description, author, taxGroup, basePrice, stock) VALUES (3, 'The Neverending Story', 'Fantastic Story about the imaginary kingdom of Fantasia with dragons, stone giants and...', 'Michael Ende', 0, 18.0, 10);
+INSERT INTO Book (id, title, description, author, taxGroup, basePrice, stock) VALUES (4, 'The Pillars of the Earth', 'The amazing story around the building of a cathedral', 'Ken Follet', 0, 10.0, 10);
+-- Los ids generados no deben chocar con los de los datos iniciales
+ALTER SEQUENCE hibernate_sequence RESTART WITH 100;
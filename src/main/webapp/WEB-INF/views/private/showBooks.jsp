@@ -102,6 +102,32 @@
 					</c:forEach>
 				</tbody>
 			</table>
+			
+			<!-- Paginación del catálogo (keyset: la siguiente página empieza tras el último libro) -->
+			<div style="margin: 15px 0;">
+				<c:url var="firstPageUrl" value="showBooks">
+					<c:param name="sort" value="${sort}" />
+					<c:if test="${size > 0}">
+						<c:param name="size" value="${size}" />
+					</c:if>
+				</c:url>
+				<a href="${firstPageUrl}"><spring:message code="catalog.firstPage"/></a>
+				<c:if test="${page.hasNext}">
+					<c:url var="nextPageUrl" value="showBooks">
+						<c:param name="sort" value="${sort}" />
+						<c:param name="afterId" value="${page.nextAfterId}" />
+						<c:if test="${size > 0}">
+							<c:param name="size" value="${size}" />
+						</c:if>
+						<c:if test="${page.sort == 'TITLE'}">
+							<c:param name="afterTitle" value="${page.nextAfterTitle}" />
+						</c:if>
+					</c:url>
+					| <a href="${nextPageUrl}"><spring:message code="catalog.nextPage"/></a>
+				</c:if>
+				| <a href="showBooks?sort=id"><spring:message code="catalog.sortById"/></a>
+				| <a href="showBooks?sort=title"><spring:message code="catalog.sortByTitle"/></a>
+			</div>
 		</article>
 	</section>
 	<footer>
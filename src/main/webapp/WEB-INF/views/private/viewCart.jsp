@@ -84,6 +84,11 @@
 										</c:when>
 										<c:otherwise>
 											<spring:message code="cart.purchase"/>
+											<c:if test="${availability.containsKey(item.bookId) and not availability[item.bookId]}">
+												<span style="color: red; font-weight: bold;">
+													(<spring:message code="cart.outOfStock"/>)
+												</span>
+											</c:if>
 										</c:otherwise>
 									</c:choose>
 								</td>
@@ -0,0 +1,164 @@
+package com.miw.business.cartmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jakarta.persistence.EntityManager;
+
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.core.io.FileSystemResource;
+
+import com.miw.business.bookmanager.BookManagerService;
+import com.miw.business.lockmanager.BookLockManager;
+import com.miw.business.reservationmanager.ReservationManagerService;
+import com.miw.metrics.Histogram;
+import com.miw.model.Book;
+import com.miw.model.Cart;
+import com.miw.persistence.Dba;
+
+/**
+ * Banco de pruebas del checkout: el camino sincrono (como CartController) frente
+ * a CheckoutPipeline, con muchos clientes comprando una unidad de pocos libros
+ * muy solicitados. No es un test (no lo ejecuta surefire); se lanza a mano
+ * desde la raiz del proyecto contra la base de datos en memoria:
+ *
+ * java -Damazin.db.mode=mem -cp target/classes:target/test-classes:<dependencias>
+ *      com.miw.business.cartmanager.CheckoutPipelineBenchmark [hilos] [compras por hilo] [particiones] [libros]
+ *
+ * Cada cliente es un usuario distinto: guarda el carrito con una linea y lo
+ * compra. Se hacen dos rondas de cada camino (la primera calienta) y de cada
+ * una se informa de checkouts por segundo, p50/p99 de latencia y, para el
+ * pipeline, del tamano medio de lote. Al final se comprueba que el stock
+ * descontado coincide con las compras con exito.
+ */
+public class CheckoutPipelineBenchmark {
+
+	private static final String BEANS = "src/main/webapp/WEB-INF/spring/appServlet/beans.xml";
+	private static final int STOCK = 10_000_000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		int partitions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int hotBooks = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		GenericXmlApplicationContext context = new GenericXmlApplicationContext();
+		AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+		context.load(new FileSystemResource(BEANS));
+		context.refresh();
+
+		BookManagerService bookManagerService = context.getBean("bookManagerService", BookManagerService.class);
+		CartManagerService cartManagerService = context.getBean(CartManagerService.class);
+		CartSessionService cartSessionService = context.getBean(CartSessionService.class);
+		ReservationManagerService reservationManagerService = context.getBean(ReservationManagerService.class);
+		BookLockManager bookLockManager = context.getBean(BookLockManager.class);
+		CheckoutPipeline pipeline = context.getBean(CheckoutPipeline.class);
+		pipeline.stop();
+		pipeline.setPartitions(partitions);
+		pipeline.start();
+
+		// Stock de sobra para que ninguna compra falle por falta de unidades
+		Dba dba = new Dba();
+		try {
+			EntityManager em = dba.getActiveEm();
+			em.createNativeQuery("UPDATE Book SET stock = ?1 WHERE id < ?2").setParameter(1, STOCK)
+					.setParameter(2, hotBooks).executeUpdate();
+			em.getEntityManagerFactory().getCache().evictAll();
+		} finally {
+			dba.closeEm();
+		}
+		List<Book> books = new ArrayList<>();
+		Map<Integer, Integer> initial = new HashMap<>();
+		for (int i = 0; i < hotBooks; i++) {
+			books.add(bookManagerService.getBookById(i));
+			initial.put(i, STOCK);
+		}
+
+		CheckoutMetrics metrics = CheckoutMetrics.getInstance();
+		int purchased = 0;
+		System.out.println("path,round,checkouts,failed,seconds,perSecond,p50us,p99us");
+		for (int run = 0; run < 4; run++) {
+			boolean sync = run % 2 == 0;
+			String path = sync ? "sync" : "pipeline";
+			metrics.getSyncLatency().reset();
+			metrics.getPipelineLatency().reset();
+
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			List<Future<Integer>> clients = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int t = 0; t < threads; t++) {
+				String username = "bench" + t;
+				clients.add(executor.submit(() -> {
+					int ok = 0;
+					for (int i = 0; i < perThread; i++) {
+						Book book = books.get(ThreadLocalRandom.current().nextInt(books.size()));
+						Cart cart = cartSessionService.modify(username, c -> c.addItem(book, 1));
+						if (sync ? checkoutSync(username, bookLockManager, cartSessionService,
+								reservationManagerService, cartManagerService) : pipeline.submit(username, cart).get()) {
+							ok++;
+						}
+					}
+					return ok;
+				}));
+			}
+			int ok = 0;
+			for (Future<Integer> client : clients) {
+				ok += client.get();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			executor.shutdown();
+			purchased += ok;
+
+			int total = threads * perThread;
+			Histogram latency = sync ? metrics.getSyncLatency() : metrics.getPipelineLatency();
+			System.out.printf("%s,%d,%d,%d,%.2f,%.0f,%d,%d%n", path, run / 2 + 1, total, total - ok, seconds,
+					total / seconds, latency.getPercentileMicros(50), latency.getPercentileMicros(99));
+		}
+		System.out.println(metrics);
+
+		int sold = 0;
+		for (Map.Entry<Integer, Integer> e : initial.entrySet()) {
+			sold += e.getValue() - bookManagerService.getBookById(e.getKey()).getStock();
+		}
+		System.out.println("purchased=" + purchased + ", stockSold=" + sold + (purchased == sold ? "" : " (MISMATCH)"));
+		System.out.println(Dba.getCacheMetrics());
+
+		pipeline.stop();
+		context.close();
+		System.exit(purchased == sold ? 0 : 1);
+	}
+
+	// Igual que el checkout sincrono de CartController
+	private static boolean checkoutSync(String username, BookLockManager bookLockManager,
+			CartSessionService cartSessionService, ReservationManagerService reservationManagerService,
+			CartManagerService cartManagerService) throws Exception {
+		long start = System.nanoTime();
+		BookLockManager.Handle user = bookLockManager.lockUser(username);
+		try {
+			Cart cart = cartSessionService.getOrCreateCart(username);
+			List<Integer> bookIds = new ArrayList<>();
+			cart.getItems().forEach(item -> bookIds.add(item.getBookId()));
+			BookLockManager.Handle lock = bookLockManager.lockAll(bookIds);
+			try {
+				boolean success = reservationManagerService.purchaseCart(username, cart);
+				if (success) {
+					cartManagerService.recordPurchase(username, cart.getItems());
+					cartSessionService.removePurchasedItems(username, cart);
+				}
+				return success;
+			} finally {
+				lock.close();
+			}
+		} finally {
+			user.close();
+			CheckoutMetrics.getInstance().recordSync(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.miw.business.cartmanager;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.springframework.context.annotation.AnnotationConfigUtils;
+import org.springframework.context.support.GenericXmlApplicationContext;
+import org.springframework.core.io.FileSystemResource;
+
+import com.miw.business.bookmanager.BookManagerService;
+import com.miw.business.lockmanager.BookLockManager;
+import com.miw.model.Book;
+import com.miw.model.Cart;
+
+import junit.framework.TestCase;
+
+/**
+ * CheckoutPipeline contra la BD en memoria (amazin.db.mode=mem, ver la
+ * configuracion de surefire): lotes con una compra sin stock que pasan a una
+ * transaccion por compra, carritos cambiados y reenvios que no compran dos
+ * veces, y carritos con libros de varias particiones.
+ *
+ * Los datos de ejemplo empiezan con 10 unidades de cada libro.
+ */
+public class CheckoutPipelineTest extends TestCase {
+
+	private static final String BEANS = "src/main/webapp/WEB-INF/spring/appServlet/beans.xml";
+
+	private GenericXmlApplicationContext context;
+	private BookManagerService bookManagerService;
+	private CartSessionService cartSessionService;
+	private BookLockManager bookLockManager;
+	private CheckoutPipeline pipeline;
+
+	@Override
+	protected void setUp() {
+		context = new GenericXmlApplicationContext();
+		AnnotationConfigUtils.registerAnnotationConfigProcessors(context);
+		context.load(new FileSystemResource(BEANS));
+		context.refresh();
+		bookManagerService = context.getBean("bookManagerService", BookManagerService.class);
+		cartSessionService = context.getBean(CartSessionService.class);
+		bookLockManager = context.getBean(BookLockManager.class);
+		pipeline = context.getBean(CheckoutPipeline.class);
+	}
+
+	@Override
+	protected void tearDown() {
+		pipeline.stop();
+		context.close();
+	}
+
+	public void testBatchWithShortCartFallsBackPerCheckout() throws Exception {
+		pipeline.setPartitions(1);
+		pipeline.start();
+		Cart first = store("pipe-ann", 0, 1);
+		Cart enough = store("pipe-bob", 1, 2);
+		Cart tooMany = store("pipe-carl", 1, 1000);
+		int stock = stock(1);
+
+		CompletableFuture<Boolean> a;
+		CompletableFuture<Boolean> b;
+		CompletableFuture<Boolean> c;
+		// Con el libro 0 bloqueado el escritor espera y las otras dos se juntan en un lote
+		BookLockManager.Handle held = bookLockManager.lock(0);
+		try {
+			a = pipeline.submit("pipe-ann", first);
+			Thread.sleep(200);
+			b = pipeline.submit("pipe-bob", enough);
+			c = pipeline.submit("pipe-carl", tooMany);
+		} finally {
+			held.close();
+		}
+
+		assertTrue(a.get());
+		assertTrue(b.get());
+		assertFalse(c.get());
+		assertEquals(stock - 2, stock(1));
+		assertTrue(cartSessionService.getOrCreateCart("pipe-bob").isEmpty());
+		assertEquals(1, cartSessionService.getOrCreateCart("pipe-carl").getItems().size());
+		String metrics = CheckoutMetrics.getInstance().toString();
+		assertFalse(metrics, metrics.contains("batchFallbacks=0,"));
+	}
+
+	public void testResubmittedCartIsNotBoughtTwice() throws Exception {
+		pipeline.setPartitions(2);
+		pipeline.start();
+		Cart cart = store("pipe-dan", 2, 1);
+		int stock = stock(2);
+
+		assertTrue(pipeline.submit("pipe-dan", cart).get());
+		try {
+			pipeline.submit("pipe-dan", cart).get();
+			fail("A cart already bought must be rejected");
+		} catch (ExecutionException e) {
+			assertEquals("cart.changed", e.getCause().getMessage());
+		}
+		assertEquals(stock - 1, stock(2));
+	}
+
+	public void testCrossPartitionCart() throws Exception {
+		pipeline.setPartitions(2);
+		pipeline.start();
+		Book three = bookManagerService.getBookById(3);
+		Book four = bookManagerService.getBookById(4);
+		Cart cart = cartSessionService.modify("pipe-eve", c -> {
+			c.addItem(three, 1);
+			c.addItem(four, 1);
+		});
+		int stock3 = stock(3);
+		int stock4 = stock(4);
+
+		assertTrue(pipeline.submit("pipe-eve", cart).get());
+		assertEquals(stock3 - 1, stock(3));
+		assertEquals(stock4 - 1, stock(4));
+		String metrics = CheckoutMetrics.getInstance().toString();
+		assertFalse(metrics, metrics.contains("crossPartition=0,"));
+	}
+
+	public void testSubmitAfterStopFails() throws Exception {
+		pipeline.setPartitions(1);
+		pipeline.start();
+		Cart cart = store("pipe-fay", 0, 1);
+		pipeline.stop();
+		try {
+			pipeline.submit("pipe-fay", cart).get();
+			fail("A stopped pipeline must not accept checkouts");
+		} catch (ExecutionException expected) {
+		}
+		assertEquals(1, cartSessionService.getOrCreateCart("pipe-fay").getTotalItems());
+	}
+
+	private Cart store(String username, int bookId, int quantity) throws Exception {
+		Book book = bookManagerService.getBookById(bookId);
+		return cartSessionService.modify(username, c -> c.addItem(book, quantity));
+	}
+
+	private int stock(int bookId) throws Exception {
+		return bookManagerService.getBookById(bookId).getStock();
+	}
+}
@@ -0,0 +1,94 @@
+package com.miw.business.lockmanager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Cerrojos por franja: se liberan al cerrar el Handle, admiten libros
+ * repetidos y en cualquier orden sin bloquearse entre hilos, y los de usuario
+ * son reentrantes.
+ */
+public class BookLockManagerTest extends TestCase {
+
+	public void testOppositeOrdersDoNotDeadlock() throws InterruptedException {
+		BookLockManager manager = new BookLockManager();
+		manager.setStripes(4);
+		AtomicInteger counter = new AtomicInteger();
+		int[] unguarded = new int[1];
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			List<Integer> ids = t % 2 == 0 ? List.of(1, 2, 3, 2) : List.of(3, 2, 1);
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 20000; i++) {
+					BookLockManager.Handle h = manager.lockAll(ids);
+					try {
+						// Sin el cerrojo se perderian incrementos
+						unguarded[0]++;
+						counter.incrementAndGet();
+					} finally {
+						h.close();
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join(30000);
+			assertFalse("lockAll deadlocked", thread.isAlive());
+		}
+		assertEquals(counter.get(), unguarded[0]);
+	}
+
+	public void testHandleReleasesStripes() throws InterruptedException {
+		BookLockManager manager = new BookLockManager();
+		BookLockManager.Handle h = manager.lockAll(List.of(5, 5, 9));
+		try {
+			assertFalse(lockedByOtherThread(manager, 5));
+		} finally {
+			h.close();
+		}
+		assertTrue(lockedByOtherThread(manager, 5));
+		assertTrue(lockedByOtherThread(manager, 9));
+	}
+
+	public void testUserLockIsReentrant() {
+		BookLockManager manager = new BookLockManager();
+		assertFalse(manager.holdsUser("ann"));
+		BookLockManager.Handle u = manager.lockUser("ann");
+		try {
+			BookLockManager.Handle again = manager.lockUsers(List.of("ann", "bob"));
+			try {
+				assertTrue(manager.holdsUser("bob"));
+			} finally {
+				again.close();
+			}
+			assertTrue(manager.holdsUser("ann"));
+		} finally {
+			u.close();
+		}
+		assertFalse(manager.holdsUser("ann"));
+	}
+
+	// true si otro hilo consigue la franja del libro
+	private static boolean lockedByOtherThread(BookLockManager manager, int bookId) throws InterruptedException {
+		boolean[] locked = new boolean[1];
+		Thread other = new Thread(() -> {
+			BookLockManager.Handle h = manager.lock(bookId);
+			try {
+				locked[0] = true;
+			} finally {
+				h.close();
+			}
+		});
+		other.start();
+		other.join(500);
+		if (other.isAlive()) {
+			// Sigue esperando: se desbloquea al salir del try del llamante
+			return false;
+		}
+		return locked[0];
+	}
+}
@@ -0,0 +1,65 @@
+package com.miw.business.reservationmanager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Cada reserva de la rueda vence una sola vez, nunca antes de su hora y como
+ * mucho un tick (mas el paso del reloj) despues, aunque su vencimiento este a
+ * varias vueltas.
+ */
+public class ExpiryWheelTest extends TestCase {
+
+	private static final long TICK = 10;
+
+	public void testRandomDeadlinesExpireOnTime() {
+		Random random = new Random(3);
+		ExpiryWheel wheel = new ExpiryWheel(TICK, 16, 0);
+		int count = 2000;
+		long[] deadlines = new long[count];
+		for (int id = 0; id < count; id++) {
+			// Hasta 12 vueltas de la rueda
+			deadlines[id] = random.nextInt(2000);
+			wheel.schedule(id, deadlines[id]);
+		}
+		assertEquals(count, wheel.getPending());
+
+		long[] expiredAt = new long[count];
+		Arrays.fill(expiredAt, -1);
+		long now = 0;
+		int maxStep = 30;
+		while (now < 2100) {
+			now += random.nextInt(maxStep + 1);
+			for (int id : wheel.advance(now)) {
+				assertEquals("id " + id + " expired twice", -1, expiredAt[id]);
+				expiredAt[id] = now;
+			}
+		}
+
+		for (int id = 0; id < count; id++) {
+			assertTrue("id " + id + " never expired", expiredAt[id] >= 0);
+			assertTrue("id " + id + " expired early", expiredAt[id] >= deadlines[id]);
+			assertTrue("id " + id + " expired late", expiredAt[id] - deadlines[id] <= TICK + maxStep);
+		}
+		assertEquals(0, wheel.getPending());
+	}
+
+	public void testPastDeadlineExpiresOnNextTick() {
+		ExpiryWheel wheel = new ExpiryWheel(TICK, 8, 1000);
+		wheel.schedule(1, 500);
+		assertTrue(wheel.advance(1005).isEmpty());
+		assertEquals(List.of(1), wheel.advance(1010));
+	}
+
+	public void testLongPauseExpiresEverything() {
+		ExpiryWheel wheel = new ExpiryWheel(TICK, 8, 0);
+		for (int id = 0; id < 100; id++) {
+			wheel.schedule(id, id * 7L);
+		}
+		assertEquals(100, wheel.advance(100000).size());
+		assertEquals(0, wheel.getPending());
+	}
+}
@@ -0,0 +1,177 @@
+package com.miw.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Banco de pruebas de la serializacion del carrito: bytes y ns por operacion
+ * de escritura y lectura para carritos de 1, 5, 20 y 100 lineas. No es un test
+ * (no lo ejecuta surefire); se lanza a mano:
+ *
+ * java -cp target/classes:target/test-classes com.miw.model.CartSerializationBenchmark [iteraciones]
+ *
+ * Compara tres formatos:
+ * <ul>
+ * <li>graph: serializacion Java del grafo anterior (carrito, lineas, libro e
+ * IVA completos), copiado aqui en clases privadas.</li>
+ * <li>ext: serializacion Java de Cart (Externalizable, solo las tuplas).</li>
+ * <li>raw: Cart.toBytes/fromBytes, lo que se guarda en el CartStore.</li>
+ * </ul>
+ */
+public class CartSerializationBenchmark {
+
+	// Grafo de la sesion antes de empaquetar las lineas
+	private static class OldVat implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		int taxGroup;
+		double value;
+	}
+
+	private static class OldBook implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int id;
+		String title;
+		String description;
+		String author;
+		OldVat vat;
+		double basePrice;
+		int stock;
+		int version;
+		double price;
+	}
+
+	private static class OldItem implements Serializable {
+		private static final long serialVersionUID = 1L;
+		OldBook book;
+		int quantity;
+		boolean isReserved;
+	}
+
+	private static class OldCart implements Serializable {
+		private static final long serialVersionUID = 1L;
+		List<OldItem> items = new ArrayList<>();
+	}
+
+	// Evita que el JIT descarte los resultados
+	private static Object sink;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		System.out.println("lines,graphBytes,extBytes,rawBytes,graphWriteNs,graphReadNs,extWriteNs,extReadNs,"
+				+ "rawWriteNs,rawReadNs");
+		for (int lines : new int[] { 1, 5, 20, 100 }) {
+			OldCart oldCart = new OldCart();
+			Cart cart = new Cart();
+			for (int i = 0; i < lines; i++) {
+				OldItem item = oldItem(i);
+				oldCart.items.add(item);
+				Book book = new Book();
+				book.setId(i);
+				book.setPrice(item.book.price);
+				if (item.isReserved) {
+					cart.putReservedItem(book, item.quantity);
+				} else {
+					cart.addItem(book, item.quantity);
+				}
+			}
+
+			byte[] graph = serialize(oldCart);
+			byte[] ext = serialize(cart);
+			byte[] raw = cart.toBytes();
+			check(cart, (Cart) deserialize(ext));
+			check(cart, Cart.fromBytes(raw));
+
+			long[] ns = new long[6];
+			// La primera vuelta es de calentamiento
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = serialize(oldCart);
+				}
+				ns[0] = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = deserialize(graph);
+				}
+				ns[1] = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = serialize(cart);
+				}
+				ns[2] = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = deserialize(ext);
+				}
+				ns[3] = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = cart.toBytes();
+				}
+				ns[4] = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					sink = Cart.fromBytes(raw);
+				}
+				ns[5] = System.nanoTime() - start;
+			}
+
+			StringBuilder row = new StringBuilder();
+			row.append(lines).append(',').append(graph.length).append(',').append(ext.length).append(',')
+					.append(raw.length);
+			for (long total : ns) {
+				row.append(',').append(total / iterations);
+			}
+			System.out.println(row);
+		}
+	}
+
+	private static OldItem oldItem(int i) {
+		OldVat vat = new OldVat();
+		vat.id = 1;
+		vat.value = 0.21;
+		OldBook book = new OldBook();
+		book.id = i;
+		book.title = "Title of book number " + i;
+		book.author = "Some Author " + i;
+		book.description = "A description of reasonable length for book " + i + " in the catalog.";
+		book.vat = vat;
+		book.basePrice = 10 + i;
+		book.price = book.basePrice * 1.21;
+		book.stock = 10;
+		OldItem item = new OldItem();
+		item.book = book;
+		item.quantity = 1 + i % 3;
+		item.isReserved = i % 4 == 0;
+		return item;
+	}
+
+	private static void check(Cart expected, Cart actual) {
+		if (actual.getItems().size() != expected.getItems().size()
+				|| actual.getTotalItems() != expected.getTotalItems()
+				|| Math.abs(actual.getTotal() - expected.getTotal()) > 1e-9) {
+			throw new IllegalStateException("Cart changed in the round trip: " + actual);
+		}
+	}
+
+	private static byte[] serialize(Object object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] data) throws Exception {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+			return in.readObject();
+		}
+	}
+}
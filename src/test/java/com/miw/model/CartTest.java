@@ -0,0 +1,230 @@
+package com.miw.model;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Prueba diferencial del carrito: una secuencia aleatoria de operaciones se
+ * aplica al carrito y a un modelo de referencia (una lista recorrida entera en
+ * cada operacion) y despues de cada paso tienen que coincidir las lineas, su
+ * orden, los totales y las busquedas. Cubre el indice con direccionamiento
+ * abierto (borrado con desplazamiento hacia atras, crecimiento) y los huecos de
+ * las lineas quitadas.
+ */
+public class CartTest extends TestCase {
+
+    private static final int STEPS = 200000;
+    private static final int BOOKS = 400;
+
+    // Linea del modelo de referencia
+    private static class Line {
+        final int bookId;
+        final boolean reserved;
+        int quantity;
+
+        Line(int bookId, boolean reserved, int quantity) {
+            this.bookId = bookId;
+            this.reserved = reserved;
+            this.quantity = quantity;
+        }
+    }
+
+    private Book[] books;
+    private List<Line> reference;
+
+    @Override
+    protected void setUp() {
+        Random random = new Random(7);
+        books = new Book[BOOKS];
+        for (int i = 0; i < BOOKS; i++) {
+            books[i] = new Book();
+            books[i].setId(i);
+            books[i].setPrice(1 + random.nextInt(5000) / 100.0);
+        }
+        reference = new ArrayList<>();
+    }
+
+    public void testRandomOperationsMatchReference() {
+        Random random = new Random(42);
+        Cart cart = new Cart();
+
+        for (int step = 0; step < STEPS; step++) {
+            // Pocos libros la mitad de las veces para que se repitan
+            int bookId = random.nextInt(random.nextBoolean() ? 40 : BOOKS);
+            int quantity = 1 + random.nextInt(5);
+            switch (random.nextInt(9)) {
+            case 0:
+            case 1:
+                cart.addItem(books[bookId], quantity);
+                Line normal = find(bookId, false);
+                if (normal != null) {
+                    normal.quantity += quantity;
+                } else {
+                    reference.add(new Line(bookId, false, quantity));
+                }
+                break;
+            case 2:
+                cart.putReservedItem(books[bookId], quantity);
+                Line reserved = find(bookId, true);
+                if (reserved != null) {
+                    reserved.quantity = quantity;
+                } else {
+                    reference.add(new Line(bookId, true, quantity));
+                }
+                break;
+            case 3:
+                cart.removeItem(bookId);
+                reference.removeIf(l -> l.bookId == bookId);
+                break;
+            case 4:
+                cart.removeReservedItem(bookId);
+                reference.removeIf(l -> l.bookId == bookId && l.reserved);
+                break;
+            case 5:
+                cart.removeNonReservedItem(bookId);
+                reference.removeIf(l -> l.bookId == bookId && !l.reserved);
+                break;
+            case 6:
+                int newQuantity = random.nextInt(4);
+                cart.updateQuantity(bookId, newQuantity);
+                Line first = first(bookId);
+                if (first != null) {
+                    if (newQuantity <= 0) {
+                        reference.removeIf(l -> l.bookId == bookId);
+                    } else {
+                        first.quantity = newQuantity;
+                    }
+                }
+                break;
+            case 7:
+                int divisor = 2 + random.nextInt(7);
+                cart.removeItemsIf(i -> i.getBookId() % divisor == 0 && i.isReserved());
+                reference.removeIf(l -> l.bookId % divisor == 0 && l.reserved);
+                break;
+            default:
+                if (random.nextInt(200) == 0) {
+                    cart.clear();
+                    reference.clear();
+                } else {
+                    CartItem item = cart.findItem(bookId);
+                    Line line = first(bookId);
+                    assertEquals("findItem " + bookId + " at step " + step, line == null, item == null);
+                    if (line != null) {
+                        assertEquals("findItem " + bookId + " at step " + step, line.reserved, item.isReserved());
+                    }
+                }
+                break;
+            }
+
+            assertSameLines("step " + step, cart);
+            for (int k = 0; k < 3; k++) {
+                int lookup = random.nextInt(BOOKS);
+                boolean isReserved = random.nextBoolean();
+                CartItem item = cart.getItem(lookup, isReserved);
+                Line line = find(lookup, isReserved);
+                assertEquals("getItem " + lookup + " at step " + step, line == null, item == null);
+                if (line != null) {
+                    assertEquals(line.quantity, item.getQuantity());
+                }
+            }
+        }
+    }
+
+    public void testBytesRoundTripKeepsLinesAndTotals() {
+        Cart cart = new Cart();
+        for (int i = 0; i < 50; i++) {
+            cart.addItem(books[i], 1 + i % 3);
+            if (i % 4 == 0) {
+                cart.putReservedItem(books[i], 2);
+            }
+        }
+        // Con huecos de lineas quitadas
+        for (int i = 0; i < 50; i += 3) {
+            cart.removeNonReservedItem(i);
+        }
+        cart.setReservationVersion(9);
+
+        Cart copy = Cart.fromBytes(cart.toBytes());
+        assertEquals(signature(cart), signature(copy));
+        assertEquals(cart.getTotal(), copy.getTotal(), 1e-9);
+        assertEquals(cart.getTotalItems(), copy.getTotalItems());
+        assertEquals(9, copy.getReservationVersion());
+        assertNull(copy.getItems().get(0).getBook());
+    }
+
+    public void testItemsAreReadOnly() {
+        Cart cart = new Cart();
+        cart.addItem(books[1], 1);
+        try {
+            cart.getItems().add(new CartItem(books[2], 1));
+            fail("getItems() must be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    public void testItemsIteratorFailsFastAndGetDoesNotCompact() {
+        Cart cart = new Cart();
+        for (int i = 0; i < 4; i++) {
+            cart.addItem(books[i], 1);
+        }
+        List<CartItem> items = cart.getItems();
+        try {
+            for (CartItem item : items) {
+                cart.removeItem(item.getBookId());
+            }
+            fail("Removing lines while iterating must fail fast");
+        } catch (ConcurrentModificationException expected) {
+        }
+
+        // La vista guardada sigue viendo las lineas que quedan, en orden
+        assertEquals(3, items.size());
+        assertEquals(1, items.get(0).getBookId());
+        assertEquals(3, items.get(2).getBookId());
+    }
+
+    private void assertSameLines(String message, Cart cart) {
+        StringBuilder expected = new StringBuilder();
+        double total = 0;
+        int units = 0;
+        for (Line line : reference) {
+            expected.append(line.bookId).append(line.reserved ? 'r' : 'n').append(line.quantity).append(' ');
+            double subtotal = books[line.bookId].getPrice() * line.quantity;
+            total += line.reserved ? subtotal * 0.95 : subtotal;
+            units += line.quantity;
+        }
+        assertEquals(message, expected.toString(), signature(cart));
+        assertEquals(message, total, cart.getTotal(), 1e-6);
+        assertEquals(message, units, cart.getTotalItems());
+        assertEquals(message, reference.isEmpty(), cart.isEmpty());
+    }
+
+    private static String signature(Cart cart) {
+        StringBuilder sb = new StringBuilder();
+        for (CartItem item : cart.getItems()) {
+            sb.append(item.getBookId()).append(item.isReserved() ? 'r' : 'n').append(item.getQuantity()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private Line find(int bookId, boolean reserved) {
+        for (Line line : reference) {
+            if (line.bookId == bookId && line.reserved == reserved) {
+                return line;
+            }
+        }
+        return null;
+    }
+
+    private Line first(int bookId) {
+        for (Line line : reference) {
+            if (line.bookId == bookId) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package com.miw.persistence.book;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.miw.persistence.Dba;
+
+/**
+ * Banco de pruebas de contencion sobre el stock de un solo libro: varios hilos
+ * compran una unidad cada vez, con mas compras que stock. No es un test (no lo
+ * ejecuta surefire); se lanza a mano contra la base de datos en memoria:
+ *
+ * java -Damazin.db.mode=mem -cp target/classes:target/test-classes:<dependencias>
+ *      com.miw.persistence.book.StockContentionBenchmark [estrategia|ALL] [hilos] [compras] [stock]
+ *
+ * Por cada estrategia informa de las compras vendidas, rechazadas por falta de
+ * stock y fallidas con excepcion (p. ej. OPTIMISTIC al agotar los
+ * reintentos), del stock final y del tiempo. Lo unico que se exige es que no
+ * se pierda stock: vendidas + stock final = stock inicial; si no, termina con
+ * codigo 1.
+ */
+public class StockContentionBenchmark {
+
+	private static final int BOOK_ID = 2;
+
+	public static void main(String[] args) throws Exception {
+		List<StockUpdateStrategy> strategies = new ArrayList<>();
+		if (args.length == 0 || args[0].equals("ALL")) {
+			strategies.addAll(List.of(StockUpdateStrategy.values()));
+		} else {
+			strategies.add(StockUpdateStrategy.valueOf(args[0]));
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int purchases = args.length > 2 ? Integer.parseInt(args[2]) : 1200;
+		int stock = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+		boolean consistent = true;
+		System.out.println("strategy,threads,purchases,stock,sold,rejected,errors,finalStock,ms");
+		for (StockUpdateStrategy strategy : strategies) {
+			consistent &= run(strategy, threads, purchases, stock);
+		}
+		System.out.println(StockUpdateMetrics.getInstance());
+		System.out.println(Dba.getCacheMetrics());
+		System.exit(consistent ? 0 : 1);
+	}
+
+	private static boolean run(StockUpdateStrategy strategy, int threads, int purchases, int stock)
+			throws Exception {
+		resetStock(stock);
+
+		BookDAO dao = new BookDAO();
+		InventoryLedger ledger = null;
+		if (strategy == StockUpdateStrategy.LEDGER) {
+			ledger = new InventoryLedger();
+			dao.setInventoryLedger(ledger);
+		}
+		dao.setStockUpdateStrategy(strategy);
+
+		AtomicInteger sold = new AtomicInteger();
+		AtomicInteger rejected = new AtomicInteger();
+		AtomicInteger errors = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (int i = 0; i < purchases; i++) {
+			executor.submit(() -> {
+				try {
+					if (dao.reduceStock(BOOK_ID, 1)) {
+						sold.incrementAndGet();
+					} else {
+						rejected.incrementAndGet();
+					}
+				} catch (Exception e) {
+					errors.incrementAndGet();
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(5, TimeUnit.MINUTES);
+		long millis = (System.nanoTime() - start) / 1_000_000;
+
+		int left = dao.getBookById(BOOK_ID).getStock();
+		if (ledger != null) {
+			ledger.stop();
+		}
+		boolean consistent = sold.get() + left == stock;
+		System.out.println(strategy + "," + threads + "," + purchases + "," + stock + "," + sold + "," + rejected
+				+ "," + errors + "," + left + "," + millis + (consistent ? "" : ",STOCK LOST"));
+		return consistent;
+	}
+
+	// Deja el libro con el stock pedido, directamente en la BD
+	private static void resetStock(int stock) throws Exception {
+		BookDAO dao = new BookDAO();
+		dao.setStockUpdateStrategy(StockUpdateStrategy.CONDITIONAL_UPDATE);
+		int initial = dao.getBookById(BOOK_ID).getStock();
+		if (initial < stock) {
+			dao.increaseBookStock(BOOK_ID, stock - initial);
+		} else if (initial > stock) {
+			dao.reduceStock(BOOK_ID, initial - stock);
+		}
+	}
+}
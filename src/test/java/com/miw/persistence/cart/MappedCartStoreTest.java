@@ -0,0 +1,126 @@
+package com.miw.persistence.cart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Recuperacion y compactacion del fichero de carritos.
+ */
+public class MappedCartStoreTest extends TestCase {
+
+	private Path directory;
+	private MappedCartStore store;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("cart-store-test");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	public void testReopenKeepsLatestCartsAndRemovals() throws IOException {
+		open();
+		store.put("ann", cart(1, 20));
+		store.put("bob", cart(2, 30));
+		store.put("ann", cart(3, 25));
+		store.put("carl", cart(4, 10));
+		store.remove("bob");
+		store.close();
+
+		open();
+		assertTrue(Arrays.equals(cart(3, 25), store.get("ann")));
+		assertNull(store.get("bob"));
+		assertTrue(Arrays.equals(cart(4, 10), store.get("carl")));
+	}
+
+	public void testTornRecordIsDropped() throws IOException {
+		open();
+		store.put("ann", cart(1, 20));
+		store.close();
+
+		// Cabecera de un registro de bob sin el resto, justo detras del de ann
+		int annLength = 10 + 3 + 20 + 4;
+		try (FileChannel channel = FileChannel.open(directory.resolve(MappedCartStore.FILE_NAME),
+				StandardOpenOption.WRITE)) {
+			ByteBuffer torn = ByteBuffer.allocate(17);
+			torn.putInt(0x43415254).putShort((short) 3).putInt(20).put("bob".getBytes(StandardCharsets.UTF_8))
+					.put(new byte[4]);
+			torn.flip();
+			channel.write(torn, annLength);
+		}
+
+		open();
+		assertTrue(Arrays.equals(cart(1, 20), store.get("ann")));
+		assertNull(store.get("bob"));
+		store.put("bob", cart(2, 30));
+		store.close();
+
+		open();
+		assertTrue(Arrays.equals(cart(1, 20), store.get("ann")));
+		assertTrue(Arrays.equals(cart(2, 30), store.get("bob")));
+	}
+
+	public void testCompactionKeepsLiveCarts() throws IOException {
+		open();
+		// Muchas versiones de pocos carritos: casi todo lo escrito es basura
+		for (int round = 0; round < 200; round++) {
+			for (int user = 0; user < 3; user++) {
+				store.put("user" + user, cart(round + user, 300));
+			}
+		}
+		store.remove("user2");
+		assertFalse(store.toString(), store.toString().contains("compactions=0"));
+		assertTrue(Files.size(directory.resolve(MappedCartStore.FILE_NAME)) <= 8192);
+		store.close();
+
+		assertFalse(Files.exists(directory.resolve(MappedCartStore.FILE_NAME + MappedCartStore.COMPACT_SUFFIX)));
+		open();
+		assertTrue(Arrays.equals(cart(199, 300), store.get("user0")));
+		assertTrue(Arrays.equals(cart(200, 300), store.get("user1")));
+		assertNull(store.get("user2"));
+	}
+
+	public void testRelativeDirectoryIsRejected() {
+		store = new MappedCartStore();
+		store.setDirectory("relative-carts");
+		try {
+			store.open();
+			fail("A relative cart store directory must be rejected");
+		} catch (IOException expected) {
+		}
+		store = null;
+	}
+
+	private void open() throws IOException {
+		store = new MappedCartStore();
+		store.setDirectory(directory.toString());
+		store.setInitialSize(4096);
+		store.open();
+	}
+
+	private static byte[] cart(int seed, int length) {
+		byte[] cart = new byte[length];
+		for (int i = 0; i < length; i++) {
+			cart[i] = (byte) (seed * 31 + i);
+		}
+		return cart;
+	}
+}
@@ -0,0 +1,124 @@
+package com.miw.persistence.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Recuperacion del diario de pedidos: lo escrito antes de cerrar se lee en
+ * orden, al reabrir se continua detras del ultimo registro valido y una
+ * escritura a medias se sobrescribe.
+ */
+public class OrderJournalTest extends TestCase {
+
+	// Cuatro registros por segmento para que cambie de segmento a menudo
+	private static final int SEGMENT_SIZE = 4 * OrderRecord.SIZE;
+
+	private Path directory;
+	private OrderJournal journal;
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("order-journal-test");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		if (journal != null) {
+			journal.close();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+		}
+	}
+
+	public void testReopenContinuesAfterLastRecord() throws IOException {
+		open();
+		append(0, 3);
+		append(3, 3);
+		journal.close();
+
+		open();
+		append(6, 1);
+		journal.close();
+		journal = null;
+
+		assertEquals(2, OrderJournal.segments(directory).size());
+		assertRecords(7);
+	}
+
+	public void testTornWriteIsOverwritten() throws IOException {
+		open();
+		append(0, 6);
+		journal.close();
+
+		// Media escritura detras del sexto registro (segundo segmento)
+		Path last = OrderJournal.segments(directory).get(1);
+		try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+			ByteBuffer torn = ByteBuffer.allocate(20);
+			torn.putInt(OrderRecord.MAGIC).putLong(System.currentTimeMillis()).putInt(99).putInt(1);
+			torn.flip();
+			channel.write(torn, 2 * OrderRecord.SIZE);
+		}
+
+		open();
+		append(6, 1);
+		journal.close();
+		journal = null;
+
+		assertRecords(7);
+	}
+
+	public void testRelativeDirectoryIsRejected() {
+		journal = new OrderJournal();
+		journal.setDirectory("relative-journal");
+		try {
+			journal.open();
+			fail("A relative journal directory must be rejected");
+		} catch (IOException expected) {
+		}
+		journal = null;
+	}
+
+	private void open() throws IOException {
+		journal = new OrderJournal();
+		journal.setDirectory(directory.toString());
+		journal.setSegmentSize(SEGMENT_SIZE);
+		journal.setSyncPolicy(JournalSyncPolicy.NONE);
+		journal.open();
+	}
+
+	// Una compra con count lineas, libros first..first+count-1
+	private void append(int first, int count) throws IOException {
+		List<OrderRecord> records = new ArrayList<>();
+		for (int i = first; i < first + count; i++) {
+			records.add(new OrderRecord("user" + i, i, i + 1, 10.5 + i, 1000L + i, i % 2 == 0));
+		}
+		journal.append(records);
+	}
+
+	private void assertRecords(int count) throws IOException {
+		try (OrderJournalReader reader = new OrderJournalReader(directory)) {
+			for (int i = 0; i < count; i++) {
+				assertTrue("missing record " + i, reader.hasNext());
+				OrderRecord record = reader.next();
+				assertEquals("user" + i, record.getUsername());
+				assertEquals(i, record.getBookId());
+				assertEquals(i + 1, record.getQuantity());
+				assertEquals(10.5 + i, record.getUnitPrice(), 0);
+				assertEquals(1000L + i, record.getTimestamp());
+				assertEquals(i % 2 == 0, record.isReserved());
+			}
+			assertFalse(reader.hasNext());
+		}
+	}
+}